@@ -0,0 +1,678 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.contract.Precondition;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Общая часть обработчиков сообщений с очередью: очередь (обычная или из почтовых ящиков),
+ * пороги перегрузки, отказы и статистика.
+ * Наследники решают, в каких потоках разбирать очередь (см. processNext()).
+ */
+public abstract class AbstractMessageProcessor<T> implements Consumer<T> {
+
+    // Сколько сообщений одного ящика обрабатываются подряд, прежде чем вернуть его в конец очереди.
+    private static final int MAILBOX_BATCH_SIZE = 16;
+
+    private final int taskQueueLimit;
+    private final long queueAddTaskWaitTimeoutMs;
+
+    private TaskQueue<T> taskQueue;
+    // Упорядоченный режим: в очереди стоят не сообщения, а почтовые ящики (см. setMailboxResolver()).
+    // Сообщения при этом лежат в самих ящиках.
+    private final ConcurrentLinkedQueue<OrderedMailbox<T>> readyMailboxes = new ConcurrentLinkedQueue<>();
+    // Воркеры, ждущие сообщений для неполной пачки (см. pollBatch()).
+    private final ConcurrentLinkedQueue<Thread> batchWaiters = new ConcurrentLinkedQueue<>();
+    private Function<T, OrderedMailbox<T>> mailboxResolver;
+    // Кол-во ждущих обработки сообщений в упорядоченном режиме (в обычном - это taskQueue.size()).
+    private final AtomicInteger mailboxesTasksCount = new AtomicInteger(0);
+    protected final IMessageHandler<T> messageHandler;
+    // Не null, если обработчик умеет принимать пачки (см. setBatching()).
+    private final IBatchMessageHandler<T> batchHandler;
+    private int maxBatchSize = 64;
+    private long maxBatchDelayNanos = 0;
+    // Не null, если обработчик асинхронный (см. setAsyncLimits()).
+    private final IAsyncMessageHandler<T> asyncHandler;
+    private Semaphore inFlightPermits = new Semaphore(10000);
+    private long asyncTimeoutMs = 30 * 1000;
+    private volatile ScheduledExecutorService asyncTimeoutScheduler;
+
+    // Пороги перегрузки (см. isOverloaded()).
+    private int highWatermark;
+    private int lowWatermark;
+    private Runnable queueDrainedListener;
+    private final AtomicBoolean overloaded = new AtomicBoolean(false);
+
+    // Для статистики
+    private final AtomicInteger activeWorkers = new AtomicInteger(0);
+    private final AtomicLong rejectedMessageCount = new AtomicLong(0);
+    private final AtomicLong totalMessagesCome = new AtomicLong(0);
+    protected final AtomicLong errorsCount = new AtomicLong(0);
+    private final AtomicInteger maxQueueSize = new AtomicInteger(0);
+    private final AtomicInteger inFlightCount = new AtomicInteger(0);
+    private final AtomicLong asyncTimeoutsCount = new AtomicLong(0);
+
+    protected volatile boolean stopRequested = false;
+
+
+    @SuppressWarnings("unchecked")
+    protected AbstractMessageProcessor(int taskQueueLimit,
+                                       long queueAddTaskWaitTimeoutMs,
+                                       IMessageHandler<T> messageHandler) {
+        Precondition.expected(taskQueueLimit > 0, "taskQueueLimit must be > 0");
+        Precondition.expected(queueAddTaskWaitTimeoutMs > 0, "queueAddTaskWaitTimeoutMs must be > 0");
+        Precondition.expected(messageHandler != null, "messageHandler is null");
+
+        this.taskQueueLimit = taskQueueLimit;
+        this.queueAddTaskWaitTimeoutMs = queueAddTaskWaitTimeoutMs;
+        this.messageHandler = messageHandler;
+        this.batchHandler = messageHandler instanceof IBatchMessageHandler ?
+                (IBatchMessageHandler<T>) messageHandler :
+                null;
+        this.asyncHandler = messageHandler instanceof IAsyncMessageHandler ?
+                (IAsyncMessageHandler<T>) messageHandler :
+                null;
+        // Лимит соблюдает сам процессор (см. offer()/queue()), очереди он не нужен:
+        // иначе offerOverLimit() некуда было бы класть.
+        this.taskQueue = new LinkedTaskQueue<>(Integer.MAX_VALUE);
+        this.highWatermark = taskQueueLimit;
+        this.lowWatermark = taskQueueLimit / 2;
+    }
+
+    public abstract void start();
+
+    public abstract void stop();
+
+    protected abstract boolean isStarted();
+
+    /**
+     * Вызывается, когда в очереди появилось что-то для обработки (сообщение или почтовый ящик).
+     */
+    protected abstract void onTaskReady();
+
+    /**
+     * Задает пороги перегрузки очереди.
+     * Очередь считается перегруженной (см. isOverloaded()), когда ее размер достиг highWatermark.
+     * После этого, как только воркеры разгребут ее до lowWatermark, будет вызван queueDrainedListener
+     * (из потока воркера).
+     */
+    public void setQueueWatermarks(int highWatermark, int lowWatermark, Runnable queueDrainedListener) {
+        Precondition.expected(highWatermark > 0 && highWatermark <= taskQueueLimit,
+                "highWatermark must be in (1..taskQueueLimit)");
+        Precondition.expected(lowWatermark >= 0 && lowWatermark < highWatermark,
+                "lowWatermark must be in (0..highWatermark - 1)");
+
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.queueDrainedListener = queueDrainedListener;
+    }
+
+    /**
+     * Настройки пачек для обработчика IBatchMessageHandler (для обычного обработчика не используются).
+     * Воркер набирает из очереди до maxBatchSize сообщений. Если сообщений меньше, ждет новых
+     * не дольше maxBatchDelayMicros от первого (0 - не ждать, брать что есть).
+     * В упорядоченном режиме пачка набирается из одного почтового ящика без ожидания.
+     */
+    public void setBatching(int maxBatchSize, long maxBatchDelayMicros) {
+        Precondition.expected(maxBatchSize > 0, "maxBatchSize must be > 0");
+        Precondition.expected(maxBatchDelayMicros >= 0, "maxBatchDelayMicros must be >= 0");
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = maxBatchDelayMicros * 1000;
+    }
+
+    /**
+     * Ограничения для асинхронного обработчика IAsyncMessageHandler (для остальных не используются).
+     * maxInFlight - сколько максимум обработок может быть не завершено одновременно
+     * (пока лимит исчерпан, воркеры не берут новые сообщения из очереди).
+     * timeoutMs - сколько ждать завершения future, после чего обработка считается неудачной
+     * (onError() с TimeoutException, future отменяется). 0 - ждать без ограничения.
+     * Асинхронный обработчик важнее пачек: IBatchMessageHandler при этом не используется.
+     * Вызывать до start().
+     */
+    public void setAsyncLimits(int maxInFlight, long timeoutMs) {
+        Precondition.expected(!isStarted(), "can't change limits of started processor");
+        Precondition.expected(maxInFlight > 0, "maxInFlight must be > 0");
+        Precondition.expected(timeoutMs >= 0, "timeoutMs must be >= 0");
+        this.inFlightPermits = new Semaphore(maxInFlight);
+        this.asyncTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Задает реализацию очереди сообщений (по умолчанию - LinkedTaskQueue).
+     * Емкость очереди должна быть не меньше taskQueueLimit. Вызывать до start().
+     */
+    public void setTaskQueue(TaskQueue<T> taskQueue) {
+        Precondition.expected(!isStarted(), "can't change queue of started processor");
+        Precondition.expected(taskQueue != null, "taskQueue is null");
+        Precondition.expected(taskQueue.capacity() >= taskQueueLimit, "taskQueue capacity must be >= taskQueueLimit");
+        Precondition.expected(this.taskQueue.isEmpty(), "current taskQueue is not empty");
+        this.taskQueue = taskQueue;
+    }
+
+    /**
+     * Включает упорядоченный режим: сообщения с одним почтовым ящиком (например, от одной сессии)
+     * обрабатываются строго по очереди, а с разными - параллельно. Без глобальных локов.
+     * null - обычный режим (любое сообщение любому свободному воркеру).
+     * Вызывать до start().
+     */
+    public void setMailboxResolver(Function<T, OrderedMailbox<T>> mailboxResolver) {
+        Precondition.expected(!isStarted(), "can't change mode of started processor");
+        this.mailboxResolver = mailboxResolver;
+    }
+
+
+    @Override
+    public void accept(T task) {
+        queue(task);
+    }
+
+    /**
+     * Неблокирующая постановка в очередь: если очередь заполнена, сообщение сразу отклоняется
+     * (с вызовом onReject()). Вернет true, если сообщение поставлено в очередь.
+     * Чтобы до отказов не доходило, вызывающий должен притормаживать поток сообщений,
+     * когда isOverloaded() == true.
+     */
+    public boolean offer(T task) {
+        Precondition.expected(task != null, "task is null");
+
+        if (getQueueSize() >= taskQueueLimit || !addToQueue(task)) {
+            reject(task);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Постановка в очередь без учета taskQueueLimit - для сообщений, которые уже прочитаны
+     * и деть их некуда (чтение к этому моменту уже приостановлено по isOverloaded(),
+     * так что сверх лимита их немного). Отклоняет, только если в очереди физически нет места.
+     */
+    public boolean offerOverLimit(T task) {
+        Precondition.expected(task != null, "task is null");
+
+        if (!addToQueue(task)) {
+            reject(task);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Вернет true, если очередь достигла highWatermark.
+     * Когда она разгребется до lowWatermark, будет вызван queueDrainedListener.
+     */
+    public boolean isOverloaded() {
+        if (getQueueSize() < highWatermark) {
+            return false;
+        }
+        overloaded.set(true);
+        // Пока ставили флаг, воркеры могли уже разгрести очередь до lowWatermark
+        // и не увидеть его (см. onTaskPolled()) - тогда событие о разгрузке отправим сами.
+        if (getQueueSize() <= lowWatermark && overloaded.compareAndSet(true, false)) {
+            onQueueDrained();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean queue(T task) {
+        Precondition.expected(task != null, "task is null");
+
+        long startWait = System.currentTimeMillis();
+        while (getQueueSize() >= taskQueueLimit && !stopRequested) {
+            stoppableWaitTimeout(10);
+            if (System.currentTimeMillis() - startWait >= queueAddTaskWaitTimeoutMs) {
+                reject(task);
+                return false;
+            }
+        }
+        // Тут слегка потоконебезопасно в том плане, что размер очереди может быть превышен максимум
+        // на кол-во конкурирующих потоков (их не много, поэтому пофиг).
+        // Короче, тут мы не заморачиваемся на точность инварианта "taskQueue.size <= taskQueueLimit"
+        // в угоду производительности (не приходится лочить).
+        // Точная очередь (RingBufferTaskQueue) при такой гонке откажет.
+        if (!addToQueue(task)) {
+            reject(task);
+            return false;
+        }
+        return true;
+    }
+
+    private void reject(T task) {
+        messageHandler.onReject(task);
+        rejectedMessageCount.incrementAndGet();
+    }
+
+    // Вернет false, если очередь заполнена.
+    private boolean addToQueue(T task) {
+        int queueSize;
+        if (mailboxResolver == null) {
+            if (!taskQueue.offer(task)) {
+                return false;
+            }
+            queueSize = taskQueue.size();
+            // Сначала отдаем сообщение воркеру, который добирает пачку (см. pollBatch()).
+            Thread batchWaiter = batchWaiters.poll();
+            if (batchWaiter != null) {
+                LockSupport.unpark(batchWaiter);
+            } else {
+                onTaskReady();
+            }
+        } else {
+            // Сначала считаем, потом кладем: иначе воркер может забрать сообщение раньше, и счетчик уйдет в минус.
+            queueSize = mailboxesTasksCount.incrementAndGet();
+            OrderedMailbox<T> mailbox = mailboxResolver.apply(task);
+            if (mailbox.add(task)) {
+                readyMailboxes.add(mailbox);
+                onTaskReady();
+            }
+        }
+
+        // Для статистики.
+        totalMessagesCome.incrementAndGet();
+        if (maxQueueSize.get() < queueSize) {
+            // Тут есть race condition, но нас это устраивает.
+            // Запись/чтение атомарны, а пропустить пару максимумов не страшно.
+            maxQueueSize.set(queueSize);
+        }
+        return true;
+    }
+
+    protected boolean hasReadyTasks() {
+        if (asyncHandler != null && inFlightPermits.availablePermits() == 0) {
+            // Сообщения есть, но брать их нельзя - ждем завершения асинхронных обработок.
+            return false;
+        }
+        return mailboxResolver == null ?
+                !taskQueue.isEmpty() :
+                !readyMailboxes.isEmpty();
+    }
+
+    /**
+     * Берет из очереди и обрабатывает очередное сообщение (в упорядоченном режиме - пачку сообщений
+     * одного почтового ящика). Вернет false, если очередь пуста.
+     */
+    protected boolean processNext() {
+        if (asyncHandler != null) {
+            return processNextAsync();
+        } else if (mailboxResolver == null && batchHandler != null) {
+            List<T> batch = pollBatch();
+            if (batch == null) {
+                return false;
+            }
+            processBatch(batch);
+        } else if (mailboxResolver == null) {
+            T task = taskQueue.poll();
+            if (task == null) {
+                return false;
+            }
+            onTaskPolled(taskQueue.size());
+            processTask(task);
+        } else {
+            OrderedMailbox<T> mailbox = readyMailboxes.poll();
+            if (mailbox == null) {
+                return false;
+            }
+            processMailbox(mailbox);
+        }
+        return true;
+    }
+
+    private boolean processNextAsync() {
+        if (!inFlightPermits.tryAcquire()) {
+            return false;
+        }
+
+        if (mailboxResolver == null) {
+            T task = taskQueue.poll();
+            if (task == null) {
+                inFlightPermits.release();
+                return false;
+            }
+            onTaskPolled(taskQueue.size());
+            startAsyncTask(task, null);
+        } else {
+            OrderedMailbox<T> mailbox = readyMailboxes.poll();
+            if (mailbox == null) {
+                inFlightPermits.release();
+                return false;
+            }
+            T task = mailbox.poll();
+            if (task == null) {
+                inFlightPermits.release();
+                releaseMailbox(mailbox);
+                return true;
+            }
+            onTaskPolled(mailboxesTasksCount.decrementAndGet());
+            // Ящик остается занятым до завершения обработки: следующее сообщение сессии
+            // начнем обрабатывать только после этого (порядок сохраняется).
+            startAsyncTask(task, mailbox);
+        }
+        return true;
+    }
+
+    private void startAsyncTask(T task, OrderedMailbox<T> mailbox) {
+        inFlightCount.incrementAndGet();
+        AsyncCall call = new AsyncCall(task, mailbox);
+        CompletableFuture<?> future;
+        try {
+            future = asyncHandler.handleAsync(task);
+        } catch (Exception e) {
+            call.complete(e);
+            return;
+        }
+        if (future == null) {
+            call.complete(null);
+        } else {
+            call.watch(future);
+        }
+    }
+
+    // Вернет null, если очередь пуста.
+    private List<T> pollBatch() {
+        T task = taskQueue.poll();
+        if (task == null) {
+            return null;
+        }
+        onTaskPolled(taskQueue.size());
+
+        List<T> batch = new ArrayList<>(Math.min(maxBatchSize, 64));
+        batch.add(task);
+        long deadline = System.nanoTime() + maxBatchDelayNanos;
+        while (batch.size() < maxBatchSize) {
+            task = taskQueue.poll();
+            if (task != null) {
+                onTaskPolled(taskQueue.size());
+                batch.add(task);
+            } else if (maxBatchDelayNanos > 0 && !stopRequested && System.nanoTime() < deadline) {
+                waitForBatchTask(deadline);
+            } else {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Спит до прихода нового сообщения (его автор разбудит нас, см. addToQueue()) или до deadline.
+     */
+    private void waitForBatchTask(long deadline) {
+        Thread current = Thread.currentThread();
+        batchWaiters.add(current);
+        // Перепроверяем после того, как встали в список: сообщение могли добавить до этого.
+        if (taskQueue.size() == 0) {
+            LockSupport.parkNanos(this, deadline - System.nanoTime());
+        }
+        batchWaiters.remove(current);
+    }
+
+    private void processMailbox(OrderedMailbox<T> mailbox) {
+        if (batchHandler != null) {
+            List<T> batch = new ArrayList<>(Math.min(maxBatchSize, 64));
+            T task;
+            while (batch.size() < maxBatchSize && (task = mailbox.poll()) != null) {
+                onTaskPolled(mailboxesTasksCount.decrementAndGet());
+                batch.add(task);
+            }
+            if (!batch.isEmpty()) {
+                processBatch(batch);
+            }
+        } else {
+            for (int i = 0; i < MAILBOX_BATCH_SIZE; ++i) {
+                T task = mailbox.poll();
+                if (task == null) {
+                    break;
+                }
+                onTaskPolled(mailboxesTasksCount.decrementAndGet());
+                processTask(task);
+            }
+        }
+        releaseMailbox(mailbox);
+    }
+
+    private void releaseMailbox(OrderedMailbox<T> mailbox) {
+        if (mailbox.release()) {
+            // В ящике еще что-то есть - в конец очереди, чтобы не задерживать остальные ящики.
+            readyMailboxes.add(mailbox);
+            onTaskReady();
+        }
+    }
+
+    // Вызывается для каждого взятого в обработку сообщения.
+    private void onTaskPolled(int queueSize) {
+        if (queueSize <= lowWatermark && overloaded.get() && overloaded.compareAndSet(true, false)) {
+            onQueueDrained();
+        }
+    }
+
+    private void processTask(T task) {
+        try {
+            activeWorkers.incrementAndGet();
+            messageHandler.handle(task);
+        } catch (Exception e) {
+            try {
+                errorsCount.incrementAndGet();
+                messageHandler.onError(task, e);
+            } catch (Exception e2) {
+                e2.printStackTrace();
+            }
+        } finally {
+            activeWorkers.decrementAndGet();
+        }
+    }
+
+    private void processBatch(List<T> batch) {
+        int count = batch.size();
+        try {
+            activeWorkers.addAndGet(count);
+            batchHandler.handleBatch(batch);
+        } catch (Exception e) {
+            errorsCount.addAndGet(count);
+            // Не знаем, какие сообщения пачки обработались - сообщаем обо всех.
+            for (T task : batch) {
+                try {
+                    messageHandler.onError(task, e);
+                } catch (Exception e2) {
+                    e2.printStackTrace();
+                }
+            }
+        } finally {
+            activeWorkers.addAndGet(-count);
+        }
+    }
+
+    private void onQueueDrained() {
+        Runnable listener = queueDrainedListener;
+        if (listener != null) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                errorsCount.incrementAndGet();
+                messageHandler.onError(e);
+            }
+        }
+    }
+
+    /**
+     * Вызывается наследником в конце start().
+     */
+    protected void onStarted() {
+        if (asyncHandler != null && asyncTimeoutMs > 0) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "MessageProcessor-AsyncTimeouts");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Почти все таймауты отменяются (обработка успевает) - не держим их в очереди.
+            scheduler.setRemoveOnCancelPolicy(true);
+            asyncTimeoutScheduler = scheduler;
+        }
+    }
+
+    /**
+     * Вызывается наследником, когда все его потоки остановлены.
+     * Уже запущенные асинхронные обработки при этом не ждем (и их таймауты больше не отслеживаем).
+     */
+    protected void onStopped() {
+        ScheduledExecutorService scheduler = asyncTimeoutScheduler;
+        if (scheduler != null) {
+            asyncTimeoutScheduler = null;
+            scheduler.shutdownNow();
+        }
+        activeWorkers.set(0);
+        rejectedMessageCount.set(0);
+        if (overloaded.compareAndSet(true, false)) {
+            // Никто больше не разгребет очередь - не оставляем никого ждать.
+            onQueueDrained();
+        }
+    }
+
+    public long getTotalMessageCome() {
+        return totalMessagesCome.get();
+    }
+
+    public int getQueueSize() {
+        return mailboxResolver == null ?
+                taskQueue.size() :
+                mailboxesTasksCount.get();
+    }
+
+    public long getRejectedMessageCount() {
+        return rejectedMessageCount.get();
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize.get();
+    }
+
+    public long getErrorsCount() {
+        return errorsCount.get();
+    }
+
+    // Кол-во сообщений, обрабатываемых прямо сейчас.
+    public int getActiveTasksCount() {
+        return activeWorkers.get();
+    }
+
+    // Кол-во незавершенных асинхронных обработок (см. IAsyncMessageHandler).
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    // Сколько асинхронных обработок не завершились вовремя.
+    public long getAsyncTimeoutsCount() {
+        return asyncTimeoutsCount.get();
+    }
+
+    /**
+     * Одна асинхронная обработка. Завершается ровно один раз: future'ом или по таймауту.
+     */
+    private class AsyncCall {
+        private final T task;
+        private final OrderedMailbox<T> mailbox;
+        private volatile ScheduledFuture<?> timeout;
+        // true, когда обработка уже завершена (результатом, ошибкой или таймаутом).
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        AsyncCall(T task, OrderedMailbox<T> mailbox) {
+            this.task = task;
+            this.mailbox = mailbox;
+        }
+
+        void watch(CompletableFuture<?> future) {
+            ScheduledExecutorService scheduler = asyncTimeoutScheduler;
+            if (scheduler != null && !future.isDone()) {
+                try {
+                    timeout = scheduler.schedule(() -> {
+                        if (complete(new TimeoutException("Async handler timed out after " + asyncTimeoutMs + " ms"))) {
+                            asyncTimeoutsCount.incrementAndGet();
+                            future.cancel(false);
+                        }
+                    }, asyncTimeoutMs, TimeUnit.MILLISECONDS);
+                    // Обработка могла завершиться до присваивания timeout - тогда complete() его не видел.
+                    // Обе стороны пишут свое поле до чтения чужого (volatile), так что хоть одна таймер снимет.
+                    if (done.get()) {
+                        timeout.cancel(false);
+                    }
+                } catch (RejectedExecutionException ignore) {
+                    // Процессор останавливается.
+                }
+            }
+            future.whenComplete((result, error) -> complete(error));
+        }
+
+        // Вернет false, если обработка уже была завершена.
+        boolean complete(Throwable error) {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            ScheduledFuture<?> currentTimeout = timeout;
+            if (currentTimeout != null) {
+                currentTimeout.cancel(false);
+            }
+
+            if (error != null) {
+                errorsCount.incrementAndGet();
+                try {
+                    messageHandler.onError(task, toException(error));
+                } catch (Exception e2) {
+                    e2.printStackTrace();
+                }
+            }
+
+            inFlightCount.decrementAndGet();
+            inFlightPermits.release();
+            if (mailbox != null) {
+                releaseMailbox(mailbox);
+            } else if (hasReadyTasks()) {
+                // Освободилось место - разбудим воркера, если очередь ждет.
+                onTaskReady();
+            }
+            return true;
+        }
+
+        private Exception toException(Throwable error) {
+            if (error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+            return error instanceof Exception ?
+                    (Exception) error :
+                    new RuntimeException(error);
+        }
+    }
+
+    protected void sleep(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void stoppableWaitTimeout(int ms) {
+        try {
+            StoppableSleep.sleep(ms, () -> stopRequested);
+        } catch (InterruptedException e) {
+            errorsCount.incrementAndGet();
+            messageHandler.onError(e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -7,6 +7,8 @@ import com.borunovv.util.NIOUtils;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
@@ -15,21 +17,86 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 class AcceptThread extends ServerThread {
 
+    // Сколько принятых клиентов отдавать R/W потокам одной пачкой (при большом всплеске - несколько пачек).
+    private static final int HAND_OFF_BATCH_SIZE = 256;
+
+    private final int index;
     private final int port;
-    private final int acceptQueueSize;
+    private final int backlog;
+    // Не null - слушающий сокет делит порт с другими AcceptThread (SO_REUSEPORT).
+    private final SocketOption<Boolean> reusePortOption;
 
     private ServerSocketChannel serverSocketChannel;
     private Selector acceptSelector;
-    private Consumer<SocketChannel> clientConsumer;
-
-    public AcceptThread(int port, int acceptQueueSize, Consumer<SocketChannel> clientConsumer) {
+    private Consumer<List<SocketChannel>> clientsConsumer;
+    private final List<SocketChannel> acceptedBatch = new ArrayList<>();
+
+    // Для статистики
+    private final AtomicLong acceptedCount = new AtomicLong(0);
+    private final AtomicLong acceptErrorsCount = new AtomicLong(0);
+    private volatile int maxAcceptBurst = 0;
+    private final RateCounter acceptRate;
+
+    /**
+     * backlog - очередь установленных соединений, еще не принятых accept() (см. ServerSocket.bind()).
+     * reusePortOption - SO_REUSEPORT (см. findReusePortOption()), если потоков приема несколько, иначе null.
+     * clientsConsumer получает принятых клиентов пачками. Список после вызова переиспользуется.
+     * acceptRate может быть общим для нескольких потоков.
+     */
+    AcceptThread(int index, int port, int backlog, SocketOption<Boolean> reusePortOption,
+                 RateCounter acceptRate, Consumer<List<SocketChannel>> clientsConsumer) {
+        this.index = index;
         this.port = port;
-        this.acceptQueueSize = acceptQueueSize;
-        this.clientConsumer = clientConsumer;
+        this.backlog = backlog;
+        this.reusePortOption = reusePortOption;
+        this.acceptRate = acceptRate;
+        this.clientsConsumer = clientsConsumer;
+    }
+
+    /**
+     * Вернет опцию SO_REUSEPORT, если ее поддерживают JVM и ОС, иначе null.
+     * StandardSocketOptions.SO_REUSEPORT появилась в Java 9, а собираемся мы под Java 8.
+     * На Linux ядро само распределяет новые соединения между сокетами, слушающими один порт.
+     */
+    @SuppressWarnings("unchecked")
+    static SocketOption<Boolean> findReusePortOption() {
+        SocketOption<Boolean> option;
+        try {
+            option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(option) ?
+                    option :
+                    null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Сколько всего клиентов принято.
+    long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    long getAcceptErrorsCount() {
+        return acceptErrorsCount.get();
+    }
+
+    // Максимум клиентов, принятых за один проход (выбрали все, что накопилось в backlog).
+    int getMaxAcceptBurst() {
+        return maxAcceptBurst;
+    }
+
+    @Override
+    protected String getThreadName() {
+        return "AcceptThread-" + index;
     }
 
     @Override
@@ -37,8 +104,11 @@ class AcceptThread extends ServerThread {
         try {
             acceptSelector = Selector.open();
             serverSocketChannel = ServerSocketChannel.open();
+            if (reusePortOption != null) {
+                serverSocketChannel.setOption(reusePortOption, true);
+            }
             ServerSocket ss = serverSocketChannel.socket();
-            ss.bind(new InetSocketAddress(port), acceptQueueSize);
+            ss.bind(new InetSocketAddress(port), backlog);
             serverSocketChannel.configureBlocking(false);
             serverSocketChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
         } catch (IOException e) {
@@ -52,6 +122,7 @@ class AcceptThread extends ServerThread {
         IOUtils.close(serverSocketChannel);
         acceptSelector = null;
         serverSocketChannel = null;
+        closeAll(acceptedBatch);
     }
 
     @Override
@@ -66,7 +137,7 @@ class AcceptThread extends ServerThread {
             if (count > 0) {
                 List<SelectionKey> keys = getValidAcceptableKeysOnly(acceptSelector.selectedKeys());
                 for (SelectionKey key : keys) {
-                    acceptClient(key);
+                    acceptClients(key);
                 }
             }
         } catch (IOException e) {
@@ -89,21 +160,76 @@ class AcceptThread extends ServerThread {
         return result;
     }
 
-    private void acceptClient(SelectionKey key) {
-        SocketChannel client = null;
+    /**
+     * Принимает всех клиентов, ждущих в backlog (пока accept() не вернет null), а не по одному за select():
+     * при массовом подключении backlog иначе переполняется и клиенты теряют SYN.
+     */
+    private void acceptClients(SelectionKey key) {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        int burst = 0;
         try {
-            ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-            client = serverChannel.accept();
+            while (!isStopRequested()) {
+                SocketChannel client;
+                try {
+                    client = serverChannel.accept();
+                } catch (IOException e) {
+                    // Например, кончились файловые дескрипторы. Попробуем на следующем select().
+                    acceptErrorsCount.incrementAndGet();
+                    onThreadError(new IOException("Failed to accept client", e));
+                    break;
+                }
+                if (client == null) {
+                    break;
+                }
+                burst++;
+                if (configureClient(client)) {
+                    acceptedBatch.add(client);
+                    if (acceptedBatch.size() >= HAND_OFF_BATCH_SIZE) {
+                        handOff();
+                    }
+                }
+            }
+        } finally {
+            handOff();
+        }
 
+        acceptedCount.addAndGet(burst);
+        acceptRate.add(burst);
+        if (burst > maxAcceptBurst) {
+            maxAcceptBurst = burst;
+        }
+    }
+
+    private boolean configureClient(SocketChannel client) {
+        try {
             client.configureBlocking(false);
             client.socket().setKeepAlive(true);
             client.socket().setTcpNoDelay(true);
-
-            clientConsumer.accept(client);
+            return true;
         } catch (IOException e) {
+            acceptErrorsCount.incrementAndGet();
             String clientIpAddress = NIOUtils.tryGetRemoteIpAddress(client);
             IOUtils.close(client);
             onThreadError(new IOException("Failed to accept client (" + clientIpAddress + ")", e));
+            return false;
+        }
+    }
+
+    private void handOff() {
+        if (acceptedBatch.isEmpty()) {
+            return;
+        }
+        try {
+            clientsConsumer.accept(acceptedBatch);
+        } finally {
+            acceptedBatch.clear();
+        }
+    }
+
+    private static void closeAll(List<SocketChannel> clients) {
+        for (SocketChannel client : clients) {
+            IOUtils.close(client);
         }
+        clients.clear();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,130 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.contract.Precondition;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Общий на сервер пул direct-буферов для I/O сессий.
+ * Буферы делятся на классы по размеру (степени двойки от MIN_BUFFER_SIZE до MAX_BUFFER_SIZE).
+ * Сессии берут буфер нужного класса и возвращают его обратно, вместо того чтобы
+ * каждый раз аллоцировать новый. Суммарный объем буферов, лежащих в пуле, ограничен.
+ * Потокобезопасен.
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 1024; // 1Kb
+    public static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024; // 16Mb
+
+    private static final int MIN_SIZE_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    private static final int SIZE_CLASSES_COUNT = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - MIN_SIZE_SHIFT + 1;
+
+    private final long maxPooledBytes;
+    private final List<ConcurrentLinkedDeque<ByteBuffer>> freeBuffers;
+
+    // Для статистики
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private final AtomicLongArray hits = new AtomicLongArray(SIZE_CLASSES_COUNT);
+    private final AtomicLongArray misses = new AtomicLongArray(SIZE_CLASSES_COUNT);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+
+    public BufferPool(long maxPooledBytes) {
+        Precondition.expected(maxPooledBytes >= 0, "maxPooledBytes must be >= 0");
+        this.maxPooledBytes = maxPooledBytes;
+        this.freeBuffers = new ArrayList<>(SIZE_CLASSES_COUNT);
+        for (int i = 0; i < SIZE_CLASSES_COUNT; ++i) {
+            freeBuffers.add(new ConcurrentLinkedDeque<>());
+        }
+    }
+
+    /**
+     * Вернет очищенный буфер емкостью не меньше minCapacity (округляется до степени двойки).
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        Precondition.expected(minCapacity > 0 && minCapacity <= MAX_BUFFER_SIZE,
+                "minCapacity must be in (1.." + MAX_BUFFER_SIZE + "), actual is: " + minCapacity);
+
+        int sizeClass = getSizeClass(minCapacity);
+        // LIFO: последний возвращенный буфер скорее всего еще в кэше процессора.
+        ByteBuffer buffer = freeBuffers.get(sizeClass).pollFirst();
+        if (buffer != null) {
+            pooledBytes.addAndGet(-buffer.capacity());
+            hits.incrementAndGet(sizeClass);
+            buffer.clear();
+            return buffer;
+        }
+
+        misses.incrementAndGet(sizeClass);
+        return ByteBuffer.allocateDirect(getSizeClassCapacity(sizeClass));
+    }
+
+    /**
+     * Возвращает буфер в пул. Если пул уже заполнен (или буфер не из пула) - буфер просто выбрасывается.
+     * После возврата буфер нельзя использовать.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect()
+                || capacity < MIN_BUFFER_SIZE
+                || capacity > MAX_BUFFER_SIZE
+                || Integer.bitCount(capacity) != 1) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            droppedCount.incrementAndGet();
+            return;
+        }
+
+        freeBuffers.get(getSizeClass(capacity)).offerFirst(buffer);
+    }
+
+    public int getSizeClassesCount() {
+        return SIZE_CLASSES_COUNT;
+    }
+
+    public int getSizeClassCapacity(int sizeClass) {
+        return 1 << (sizeClass + MIN_SIZE_SHIFT);
+    }
+
+    // Сколько раз буфер данного класса нашелся в пуле.
+    public long getHitsCount(int sizeClass) {
+        return hits.get(sizeClass);
+    }
+
+    // Сколько раз буфер данного класса пришлось аллоцировать.
+    public long getMissesCount(int sizeClass) {
+        return misses.get(sizeClass);
+    }
+
+    // Сколько буферов не взяли обратно в пул (пул полон).
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    // Суммарный объем свободных буферов в пуле.
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    private static int getSizeClass(int capacity) {
+        int size = Math.max(capacity, MIN_BUFFER_SIZE);
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1); // ceil(log2(size))
+        return shift - MIN_SIZE_SHIFT;
+    }
+}
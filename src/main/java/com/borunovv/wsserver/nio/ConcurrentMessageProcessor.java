@@ -2,187 +2,291 @@ package com.borunovv.wsserver.nio;
 
 import com.borunovv.contract.Precondition;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Consumer;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Многопоточный обработчик сообщений с очередью.
+ * Очередь разбирает пул потоков-воркеров: фиксированный или эластичный (см. setElasticWorkers()).
  */
-public class ConcurrentMessageProcessor<T> implements Consumer<T> {
+public class ConcurrentMessageProcessor<T> extends AbstractMessageProcessor<T> {
+
+    // Сколько раз воркер перепроверяет пустую очередь, прежде чем уснуть (см. Worker.waitForTask()).
+    private static final int WORKER_SPIN_TRIES = 64;
+    // Не чаще одного нового воркера за этот интервал (чтобы всплеск не наплодил потоков).
+    private static final long GROW_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
 
     private int workerThreadsCount = 10;
-    private int taskQueueLimit = 10000;
-    private long queueAddTaskWaitTimeoutMs = 30 * 1000; // 30 seconds
+
+    // Эластичный режим.
+    private boolean elastic = false;
+    private int minWorkers;
+    private int maxWorkers;
+    private int growQueueSize;
+    private long growQueueWaitNanos;
+    private long shrinkIdleNanos;
+    // С какого момента очередь непрерывно не пуста (0 - воркеры ее разгребли).
+    private volatile long queueStallStartNanos = 0;
+    private final AtomicLong lastGrowNanos = new AtomicLong(0);
 
     private volatile ExecutorService executor;
-    private final ConcurrentLinkedQueue<T> taskQueue = new ConcurrentLinkedQueue<>();
-    private final IMessageHandler<T> messageHandler;
 
-    // Для статистики
-    private final AtomicInteger activeWorkers = new AtomicInteger(0);
-    private final AtomicLong rejectedMessageCount = new AtomicLong(0);
-    private final AtomicLong totalMessagesCome = new AtomicLong(0);
-    private final AtomicLong errorsCount = new AtomicLong(0);
-    private final AtomicInteger maxQueueSize = new AtomicInteger(0);
+    // Все воркеры и уснувшие из них (стек: первым будим последнего уснувшего, он "теплее").
+    private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedDeque<Worker> idleWorkers = new ConcurrentLinkedDeque<>();
 
-    private volatile boolean stopRequested = false;
+    // Для статистики
+    private final AtomicInteger workersCount = new AtomicInteger(0);
+    private volatile int peakWorkersCount = 0;
+    private final AtomicLong workersGrowCount = new AtomicLong(0);
+    private final AtomicLong workersShrinkCount = new AtomicLong(0);
 
 
     public ConcurrentMessageProcessor(int workerThreadsCount,
                                       int taskQueueLimit,
                                       long queueAddTaskWaitTimeoutMs,
                                       IMessageHandler<T> messageHandler) {
+        super(taskQueueLimit, queueAddTaskWaitTimeoutMs, messageHandler);
         Precondition.expected(workerThreadsCount > 0, "workerThreadsCount must be > 0");
-        Precondition.expected(taskQueueLimit > 0, "taskQueueLimit must be > 0");
-        Precondition.expected(queueAddTaskWaitTimeoutMs > 0, "queueAddTaskWaitTimeoutMs must be > 0");
-        Precondition.expected(messageHandler != null, "messageHandler is null");
 
         this.workerThreadsCount = workerThreadsCount;
-        this.taskQueueLimit = taskQueueLimit;
-        this.queueAddTaskWaitTimeoutMs = queueAddTaskWaitTimeoutMs;
-        this.messageHandler = messageHandler;
     }
 
-
-    @Override
-    public void accept(T task) {
-        queue(task);
+    /**
+     * Включает эластичный режим: воркеров от minWorkers до maxWorkers.
+     * Новый воркер добавляется, когда все воркеры заняты и при этом в очереди не меньше growQueueSize
+     * сообщений или она не пустеет уже growQueueWaitMs. Воркер, проспавший без работы shrinkIdleMs,
+     * завершается (если воркеров больше minWorkers).
+     * Вызывать до start().
+     */
+    public void setElasticWorkers(int minWorkers, int maxWorkers,
+                                  int growQueueSize, long growQueueWaitMs, long shrinkIdleMs) {
+        Precondition.expected(!isStarted(), "can't change mode of started processor");
+        Precondition.expected(minWorkers > 0, "minWorkers must be > 0");
+        Precondition.expected(maxWorkers >= minWorkers, "maxWorkers must be >= minWorkers");
+        Precondition.expected(growQueueSize > 0, "growQueueSize must be > 0");
+        Precondition.expected(growQueueWaitMs > 0, "growQueueWaitMs must be > 0");
+        Precondition.expected(shrinkIdleMs > 0, "shrinkIdleMs must be > 0");
+
+        this.elastic = true;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.growQueueSize = growQueueSize;
+        this.growQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(growQueueWaitMs);
+        this.shrinkIdleNanos = TimeUnit.MILLISECONDS.toNanos(shrinkIdleMs);
     }
 
-    private boolean queue(T task) {
-        Precondition.expected(task != null, "task is null");
-
-        long startWait = System.currentTimeMillis();
-        while (taskQueue.size() >= taskQueueLimit && !stopRequested) {
-            stoppableWaitTimeout(10);
-            if (System.currentTimeMillis() - startWait >= queueAddTaskWaitTimeoutMs) {
-                messageHandler.onReject(task);
-                rejectedMessageCount.incrementAndGet();
-                return false;
-            }
-        }
-        // Тут слегка потоконебезопасно в том плане, что размер очереди может быть превышен максимум
-        // на кол-во конкурирующих потоков (их не много, поэтому пофиг).
-        // Короче, тут мы не заморачиваемся на точность инварианта "taskQueue.size <= taskQueueLimit"
-        // в угоду производительности (не приходится лочить).
-        taskQueue.add(task);
-
-
-        // Для статистики.
-        totalMessagesCome.incrementAndGet();
-        int queueSize = taskQueue.size();
-        if (maxQueueSize.get() < queueSize) {
-            // Тут есть race condition, но нас это устраивает.
-            // Запись/чтение атомарны, а пропустить пару максимумов не страшно.
-            maxQueueSize.set(queueSize);
+    @Override
+    protected void onTaskReady() {
+        Worker worker = idleWorkers.poll();
+        if (worker != null) {
+            LockSupport.unpark(worker.thread);
+        } else if (elastic) {
+            // Все воркеры заняты.
+            tryGrow();
         }
+    }
 
-        return true;
+    @Override
+    protected boolean isStarted() {
+        return executor != null;
     }
 
+    @Override
     public void stop() {
         if (executor != null) {
             stopRequested = true;
             executor.shutdown();
+            for (Worker worker : workers) {
+                LockSupport.unpark(worker.thread);
+            }
             while (!executor.isTerminated()) {
                 sleep(10);
             }
             stopRequested = false;
             executor = null;
+            workers.clear();
+            idleWorkers.clear();
+            workersCount.set(0);
+            queueStallStartNanos = 0;
 
-            activeWorkers.set(0);
-            rejectedMessageCount.set(0);
+            onStopped();
         }
     }
 
+    @Override
     public void start() {
         stop();
 
-        executor = Executors.newFixedThreadPool(workerThreadsCount);
-        for (int i = 0; i < workerThreadsCount; ++i) {
-            executor.submit(new Worker());
+        // nanoTime() может быть и отрицательным, поэтому не 0.
+        lastGrowNanos.set(System.nanoTime() - GROW_INTERVAL_NANOS);
+        int count = elastic ? minWorkers : workerThreadsCount;
+        executor = elastic ?
+                Executors.newCachedThreadPool() :
+                Executors.newFixedThreadPool(count);
+        for (int i = 0; i < count; ++i) {
+            workersCount.incrementAndGet();
+            startWorker();
         }
+        onStarted();
     }
 
-    public long getTotalMessageCome() {
-        return totalMessagesCome.get();
+    // Кол-во воркеров, спящих в ожидании сообщений.
+    public int getIdleWorkersCount() {
+        return idleWorkers.size();
     }
 
-    public int getQueueSize() {
-        return taskQueue.size();
+    // Текущее кол-во воркеров (в эластичном режиме меняется).
+    public int getWorkersCount() {
+        return workersCount.get();
     }
 
-    public long getRejectedMessageCount() {
-        return rejectedMessageCount.get();
+    public int getPeakWorkersCount() {
+        return peakWorkersCount;
     }
 
-    public int getMaxQueueSize() {
-        return maxQueueSize.get();
+    // Сколько раз эластичный пул добавлял и убирал воркеров.
+    public long getWorkersGrowCount() {
+        return workersGrowCount.get();
     }
 
-    public long getErrorsCount() {
-        return errorsCount.get();
+    public long getWorkersShrinkCount() {
+        return workersShrinkCount.get();
     }
 
-    private class Worker implements Runnable {
-        private int timeoutToWait;
-
-        @Override
-        public void run() {
-            while (!stopRequested) {
-                T task = taskQueue.poll();
-                if (task != null) {
-                    // В очереди что-то есть, обработаем..
-                    timeoutToWait = 0; // Сброс таймаута ожидания.
-                    processTask(task);
-                } else {
-                    // Очередь пуста. Прогрессивный таймаут ожидания.
-                    progressiveSleep();
-                }
+    private void startWorker() {
+        Worker worker = new Worker();
+        workers.add(worker);
+        try {
+            ExecutorService current = executor;
+            if (current == null) {
+                throw new RejectedExecutionException("processor is stopped");
             }
+            current.execute(worker);
+        } catch (RejectedExecutionException e) {
+            // Процессор останавливается.
+            workers.remove(worker);
+            workersCount.decrementAndGet();
+            return;
+        }
+        int count = workersCount.get();
+        if (count > peakWorkersCount) {
+            peakWorkersCount = count;
         }
+    }
 
-        private void progressiveSleep() {
-            stoppableWaitTimeout(timeoutToWait);
-            timeoutToWait = Math.min(100, timeoutToWait + 1);
+    private void tryGrow() {
+        long now = System.nanoTime();
+        long stallStart = queueStallStartNanos;
+        if (stallStart == 0) {
+            queueStallStartNanos = now;
+            stallStart = now;
         }
 
-        private void processTask(T task) {
+        if (workersCount.get() >= maxWorkers) {
+            return;
+        }
+        if (getQueueSize() < growQueueSize && now - stallStart < growQueueWaitNanos) {
+            return;
+        }
+        long lastGrow = lastGrowNanos.get();
+        if (now - lastGrow < GROW_INTERVAL_NANOS || !lastGrowNanos.compareAndSet(lastGrow, now)) {
+            return;
+        }
+
+        int count;
+        do {
+            count = workersCount.get();
+            if (count >= maxWorkers) {
+                return;
+            }
+        } while (!workersCount.compareAndSet(count, count + 1));
+
+        workersGrowCount.incrementAndGet();
+        startWorker();
+    }
+
+    // Вернет true, если воркер может завершиться (воркеров больше минимума).
+    private boolean tryShrink() {
+        int count;
+        do {
+            count = workersCount.get();
+            if (count <= minWorkers) {
+                return false;
+            }
+        } while (!workersCount.compareAndSet(count, count - 1));
+
+        workersShrinkCount.incrementAndGet();
+        return true;
+    }
+
+    private class Worker implements Runnable {
+        private volatile Thread thread;
+        private int spinTries;
+        private boolean retired;
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
             try {
-                activeWorkers.incrementAndGet();
-                messageHandler.handle(task);
-            } catch (Exception e) {
-                try {
-                    errorsCount.incrementAndGet();
-                    messageHandler.onError(task, e);
-                } catch (Exception e2) {
-                    e2.printStackTrace();
+                while (!stopRequested && !retired) {
+                    if (processNext()) {
+                        spinTries = 0;
+                    } else {
+                        queueStallStartNanos = 0;
+                        waitForTask();
+                    }
                 }
             } finally {
-                activeWorkers.decrementAndGet();
+                workers.remove(this);
             }
         }
-    }
 
-    private void sleep(int ms) {
-        try {
-            Thread.sleep(ms);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-    }
+        /**
+         * Очередь пуста. Сначала немного крутимся (под нагрузкой сообщение скорее всего вот-вот придет),
+         * потом засыпаем до сигнала от onTaskReady().
+         */
+        private void waitForTask() {
+            if (spinTries < WORKER_SPIN_TRIES) {
+                spinTries++;
+                Thread.yield();
+                return;
+            }
+            spinTries = 0;
+
+            idleWorkers.push(this);
+            // Перепроверяем после того, как встали в список спящих: иначе можно пропустить
+            // сообщение, добавленное между poll() и push() (его автор нас еще не видел).
+            if (hasReadyTasks() || stopRequested) {
+                idleWorkers.remove(this);
+                return;
+            }
 
-    private void stoppableWaitTimeout(int ms) {
-        try {
-            StoppableSleep.sleep(ms, () -> stopRequested);
-        } catch (InterruptedException e) {
-            errorsCount.incrementAndGet();
-            messageHandler.onError(e);
-            Thread.currentThread().interrupt();
+            if (!elastic) {
+                LockSupport.park(this);
+                // Пробуждение могло быть ложным (не через onTaskReady()).
+                idleWorkers.remove(this);
+                return;
+            }
+
+            long parkStart = System.nanoTime();
+            LockSupport.parkNanos(this, shrinkIdleNanos);
+            // Если нас никто не достал из списка - нас не будили, мы проспали (или проснулись ложно).
+            boolean signalled = !idleWorkers.remove(this);
+            if (!signalled
+                    && System.nanoTime() - parkStart >= shrinkIdleNanos
+                    && !hasReadyTasks()
+                    && tryShrink()) {
+                retired = true;
+            }
         }
     }
-}
\ No newline at end of file
+}
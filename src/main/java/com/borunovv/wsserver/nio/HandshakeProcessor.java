@@ -0,0 +1,153 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.contract.Precondition;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Обработка websocket handshake (разбор HTTP-запроса, SHA-1, Base64) и статистика по ним.
+ * Если задан пул (threadsCount > 0, см. ServerSettings.setHandshakeThreads()), handshake выполняются в нем,
+ * а не в R/W потоках: при массовом переподключении клиентов R/W потоки продолжают обслуживать
+ * уже подключенных. Очередь пула ограничена, не влезшие в нее соединения закрываются.
+ * Иначе handshake выполняются прямо в R/W потоке.
+ */
+public class HandshakeProcessor {
+
+    private final int threadsCount;
+    private final int queueCapacity;
+    private volatile ThreadPoolExecutor executor;
+
+    // Для статистики
+    private final AtomicLong handshakesCount = new AtomicLong(0);
+    private final AtomicLong rejectedCount = new AtomicLong(0);
+    private final AtomicLong failedCount = new AtomicLong(0);
+    private final AtomicLong totalLatencyNanos = new AtomicLong(0);
+    private volatile long maxLatencyNanos = 0;
+    private final RateCounter rate = new RateCounter();
+
+    HandshakeProcessor(int threadsCount, int queueCapacity) {
+        Precondition.expected(threadsCount >= 0, "threadsCount must be >= 0");
+        Precondition.expected(threadsCount == 0 || queueCapacity > 0, "queueCapacity must be > 0");
+        this.threadsCount = threadsCount;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * true, если handshake выполняются в отдельном пуле.
+     */
+    boolean isOffloaded() {
+        return threadsCount > 0;
+    }
+
+    void start() {
+        stop();
+        if (isOffloaded()) {
+            executor = new ThreadPoolExecutor(threadsCount, threadsCount, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), new HandshakeThreadFactory());
+        }
+    }
+
+    void stop() {
+        ThreadPoolExecutor current = executor;
+        if (current != null) {
+            executor = null;
+            // Недоделанные handshake не нужны: R/W потоки уже закрыли сессии.
+            current.shutdownNow();
+            try {
+                current.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Ставит handshake в очередь пула. Вернет false, если очередь полна (или пул остановлен).
+     */
+    boolean submit(Runnable handshakeTask) {
+        ThreadPoolExecutor current = executor;
+        if (current != null) {
+            try {
+                current.execute(handshakeTask);
+                return true;
+            } catch (RejectedExecutionException ignore) {
+            }
+        }
+        rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Вызывается, когда ответ на handshake поставлен в очередь на отправку.
+     * latencyNanos - от получения запроса целиком до этого момента.
+     */
+    void onHandshakeDone(long latencyNanos) {
+        handshakesCount.incrementAndGet();
+        totalLatencyNanos.addAndGet(latencyNanos);
+        if (latencyNanos > maxLatencyNanos) {
+            maxLatencyNanos = latencyNanos;
+        }
+        rate.add(1);
+    }
+
+    void onHandshakeFailed() {
+        failedCount.incrementAndGet();
+    }
+
+    // Сколько handshake выполнено.
+    public long getHandshakesCount() {
+        return handshakesCount.get();
+    }
+
+    // Сколько соединений закрыто, т.к. очередь пула была полна.
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    // Сколько handshake не удалось разобрать.
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    // Кол-во handshake, ждущих в очереди пула.
+    public int getQueueSize() {
+        ThreadPoolExecutor current = executor;
+        return current != null ? current.getQueue().size() : 0;
+    }
+
+    // Кол-во handshake за последнюю завершившуюся секунду и максимум за все время.
+    public long getHandshakesPerSecond() {
+        return rate.getRate();
+    }
+
+    public long getPeakHandshakesPerSecond() {
+        return rate.getPeakRate();
+    }
+
+    // Средняя и максимальная задержка handshake (включая ожидание в очереди пула).
+    public long getAverageLatencyMicros() {
+        long count = handshakesCount.get();
+        return count > 0 ?
+                TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.get() / count) :
+                0;
+    }
+
+    public long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos);
+    }
+
+    private static class HandshakeThreadFactory implements ThreadFactory {
+        private final AtomicInteger nextIndex = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "HandshakeThread-" + nextIndex.getAndIncrement());
+        }
+    }
+}
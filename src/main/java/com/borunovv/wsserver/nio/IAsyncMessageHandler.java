@@ -0,0 +1,22 @@
+package com.borunovv.wsserver.nio;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Асинхронный обработчик: handleAsync() только запускает обработку (например, неблокирующий запрос
+ * во внешний сервис) и сразу возвращает future, а воркер идет за следующим сообщением.
+ * Кол-во незавершенных обработок и их время ограничены (см. AbstractMessageProcessor.setAsyncLimits()).
+ * Если future завершится с ошибкой (или не успеет завершиться), будет вызван onError().
+ */
+public interface IAsyncMessageHandler<T> extends IMessageHandler<T> {
+
+    CompletableFuture<?> handleAsync(T message);
+
+    @Override
+    default void handle(T message) {
+        CompletableFuture<?> future = handleAsync(message);
+        if (future != null) {
+            future.join();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.borunovv.wsserver.nio;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Обработчик, получающий сообщения пачками (см. AbstractMessageProcessor.setBatching()).
+ * Удобен, когда обработка одного сообщения дорогая, а пачки - почти как одного (запись в БД и т.п.).
+ * Если handleBatch() бросит исключение, onError() будет вызван для каждого сообщения пачки.
+ */
+public interface IBatchMessageHandler<T> extends IMessageHandler<T> {
+
+    void handleBatch(List<T> messages);
+
+    @Override
+    default void handle(T message) {
+        handleBatch(Collections.singletonList(message));
+    }
+}
@@ -4,4 +4,9 @@ import com.borunovv.wsserver.protocol.websocket.WSMessage;
 
 public interface IWSMessageHandler {
     void handle(WSMessage msg);
+
+    // true - новые сообщения сейчас лучше не читать (см. RWSession.pauseReadingIfOverloaded()).
+    default boolean isOverloaded() {
+        return false;
+    }
 }
@@ -0,0 +1,191 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.log.Log;
+import com.borunovv.wsserver.protocol.websocket.WSMessage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Вызывает обработчик сообщений прямо в R/W потоке, без очереди и воркеров
+ * (см. ServerSettings.setInlineDispatch()). Для дешевых обработчиков (эхо, подтверждения, маршрутизация)
+ * это быстрее, чем передача сообщения в другой поток.
+ * Но пока обработчик работает, R/W поток не обслуживает остальные сессии. Поэтому время обработчиков
+ * меряется, а сторожевой поток предупреждает о тех, кто превысил бюджет и все еще не вернулся.
+ */
+public class InlineDispatcher extends ServerThread {
+
+    private static final int WATCHDOG_PERIOD_MS = 10;
+    private static final long SLOW_HANDLER_LOG_INTERVAL_MS = 1000;
+
+    private final IMessageHandler<WSMessage> messageHandler;
+    private final long budgetNanos;
+
+    // По слоту на R/W поток: когда начался текущий вызов (0 - не в обработчике) и в каком потоке.
+    private final AtomicLongArray callStartNanos;
+    private final AtomicReferenceArray<Thread> callThreads;
+    // Начало вызова, о котором сторож уже предупредил (чтобы не повторяться).
+    private final long[] reportedCallStartNanos;
+
+    // Для статистики
+    private final AtomicLong handledCount = new AtomicLong(0);
+    private final AtomicLong totalTimeNanos = new AtomicLong(0);
+    private final AtomicLong slowHandlersCount = new AtomicLong(0);
+    private final AtomicLong watchdogReportsCount = new AtomicLong(0);
+    private volatile long maxTimeNanos = 0;
+    private final AtomicLong lastSlowHandlerLogMs = new AtomicLong(0);
+    private long lastWatchdogLogMs = 0;
+
+    InlineDispatcher(IMessageHandler<WSMessage> messageHandler, int rwThreadsCount, long budgetMicros) {
+        this.messageHandler = messageHandler;
+        this.budgetNanos = TimeUnit.MICROSECONDS.toNanos(budgetMicros);
+        this.callStartNanos = new AtomicLongArray(rwThreadsCount);
+        this.callThreads = new AtomicReferenceArray<>(rwThreadsCount);
+        this.reportedCallStartNanos = new long[rwThreadsCount];
+    }
+
+    /**
+     * Обрабатывает сообщение в текущем (R/W) потоке.
+     */
+    void dispatch(WSMessage msg, int rwThreadIndex) {
+        long start = System.nanoTime();
+        callThreads.lazySet(rwThreadIndex, Thread.currentThread());
+        callStartNanos.set(rwThreadIndex, start);
+        try {
+            invoke(msg);
+        } finally {
+            callStartNanos.set(rwThreadIndex, 0);
+            onHandled(msg, System.nanoTime() - start);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void invoke(WSMessage msg) {
+        try {
+            if (messageHandler instanceof IAsyncMessageHandler) {
+                // Не ждем завершения - только ловим ошибку.
+                CompletableFuture<?> future = ((IAsyncMessageHandler<WSMessage>) messageHandler).handleAsync(msg);
+                if (future != null) {
+                    future.whenComplete((result, error) -> {
+                        if (error != null) {
+                            onError(msg, error instanceof Exception ? (Exception) error : new RuntimeException(error));
+                        }
+                    });
+                }
+            } else {
+                messageHandler.handle(msg);
+            }
+        } catch (Exception e) {
+            onError(msg, e);
+        }
+    }
+
+    private void onError(WSMessage msg, Exception e) {
+        try {
+            messageHandler.onError(msg, e);
+        } catch (Exception e2) {
+            e2.printStackTrace();
+        }
+    }
+
+    private void onHandled(WSMessage msg, long timeNanos) {
+        handledCount.incrementAndGet();
+        totalTimeNanos.addAndGet(timeNanos);
+        if (timeNanos > maxTimeNanos) {
+            maxTimeNanos = timeNanos;
+        }
+        if (timeNanos > budgetNanos) {
+            slowHandlersCount.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long lastLog = lastSlowHandlerLogMs.get();
+            if (now - lastLog >= SLOW_HANDLER_LOG_INTERVAL_MS && lastSlowHandlerLogMs.compareAndSet(lastLog, now)) {
+                Log.warn("Inline handler exceeded time budget: " + TimeUnit.NANOSECONDS.toMicros(timeNanos)
+                        + " us (budget: " + TimeUnit.NANOSECONDS.toMicros(budgetNanos) + " us). Message type: " + msg.getType()
+                        + ". Total slow calls: " + slowHandlersCount.get());
+            }
+        }
+    }
+
+    // Сколько сообщений обработано в R/W потоках.
+    public long getHandledCount() {
+        return handledCount.get();
+    }
+
+    public long getTotalTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(totalTimeNanos.get());
+    }
+
+    public long getMaxTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxTimeNanos);
+    }
+
+    // Сколько вызовов превысили бюджет.
+    public long getSlowHandlersCount() {
+        return slowHandlersCount.get();
+    }
+
+    // Сколько раз сторож застал обработчик, все еще работающий сверх бюджета.
+    public long getWatchdogReportsCount() {
+        return watchdogReportsCount.get();
+    }
+
+    @Override
+    protected String getThreadName() {
+        return "InlineDispatchWatchdog";
+    }
+
+    @Override
+    protected void onThreadStart() {
+    }
+
+    @Override
+    protected void doThreadIteration() {
+        try {
+            Thread.sleep(WATCHDOG_PERIOD_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        long now = System.nanoTime();
+        for (int i = 0; i < callStartNanos.length(); ++i) {
+            long start = callStartNanos.get(i);
+            if (start != 0 && now - start > budgetNanos && reportedCallStartNanos[i] != start) {
+                reportedCallStartNanos[i] = start;
+                watchdogReportsCount.incrementAndGet();
+                long nowMs = System.currentTimeMillis();
+                if (nowMs - lastWatchdogLogMs >= SLOW_HANDLER_LOG_INTERVAL_MS) {
+                    lastWatchdogLogMs = nowMs;
+                    reportLongCall(i, now - start);
+                }
+            }
+        }
+    }
+
+    private void reportLongCall(int rwThreadIndex, long elapsedNanos) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Inline handler blocks RWThread-").append(rwThreadIndex)
+                .append(" for ").append(TimeUnit.NANOSECONDS.toMicros(elapsedNanos)).append(" us")
+                .append(" (budget: ").append(TimeUnit.NANOSECONDS.toMicros(budgetNanos)).append(" us).")
+                .append(" Total reports: ").append(watchdogReportsCount.get());
+        Thread thread = callThreads.get(rwThreadIndex);
+        if (thread != null) {
+            for (StackTraceElement element : thread.getStackTrace()) {
+                sb.append("\n\tat ").append(element);
+            }
+        }
+        Log.warn(sb.toString());
+    }
+
+    @Override
+    protected void onThreadStop() {
+    }
+
+    @Override
+    protected void onThreadError(Exception e) {
+        Log.error("Error in inline dispatch watchdog:", e);
+    }
+}
@@ -0,0 +1,75 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.contract.Precondition;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма задержек (для статистики) с корзинами по степеням двойки микросекунд:
+ * корзина 0 - меньше 1 мкс, корзина i - [2^(i-1), 2^i) мкс, последняя - все, что больше.
+ * Потокобезопасна, добавление - без блокировок.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS_COUNT = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_COUNT);
+    private final AtomicLong count = new AtomicLong(0);
+    private volatile long maxMicros = 0;
+
+    void add(long micros) {
+        Precondition.expected(micros >= 0, "micros must be >= 0");
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS_COUNT - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        if (micros > maxMicros) {
+            maxMicros = micros;
+        }
+    }
+
+    // Сколько всего значений.
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    public int getBucketsCount() {
+        return BUCKETS_COUNT;
+    }
+
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    // Верхняя граница корзины (не включительно).
+    public long getBucketUpperBoundMicros(int bucket) {
+        return bucket < BUCKETS_COUNT - 1 ?
+                1L << bucket :
+                Long.MAX_VALUE;
+    }
+
+    /**
+     * Оценка перцентиля (0..100) сверху: граница корзины, в которую он попал
+     * (для последней корзины - максимум). 0, если значений нет.
+     */
+    public long getPercentileMicros(double percentile) {
+        Precondition.expected(percentile >= 0 && percentile <= 100, "percentile must be in [0..100]");
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS_COUNT - 1; ++i) {
+            seen += buckets.get(i);
+            if (seen >= threshold) {
+                return Math.min(getBucketUpperBoundMicros(i), maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+}
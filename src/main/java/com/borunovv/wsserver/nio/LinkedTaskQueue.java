@@ -0,0 +1,59 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.contract.Precondition;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Очередь на основе ConcurrentLinkedQueue.
+ * Размер считается отдельно (ConcurrentLinkedQueue.size() - это O(n)).
+ * Емкость соблюдается приблизительно: при гонке очередь может превысить ее
+ * на кол-во конкурирующих писателей.
+ */
+public class LinkedTaskQueue<E> implements TaskQueue<E> {
+
+    private final ConcurrentLinkedQueue<E> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final int capacity;
+
+    public LinkedTaskQueue(int capacity) {
+        Precondition.expected(capacity > 0, "capacity must be > 0");
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(E element) {
+        Precondition.expected(element != null, "element is null");
+        if (size.get() >= capacity) {
+            return false;
+        }
+        queue.add(element);
+        size.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        E element = queue.poll();
+        if (element != null) {
+            size.decrementAndGet();
+        }
+        return element;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0, size.get());
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,55 @@
+package com.borunovv.wsserver.nio;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Почтовый ящик для упорядоченной обработки сообщений (см. ConcurrentMessageProcessor.setMailboxResolver()).
+ * Ящик стоит в очереди обработчика не больше одного раза, и в каждый момент его разбирает
+ * не больше одного воркера. Поэтому сообщения одного ящика обрабатываются строго по порядку,
+ * а разные ящики - параллельно.
+ * Потокобезопасен.
+ */
+public final class OrderedMailbox<T> {
+
+    private final ConcurrentLinkedQueue<T> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    // true, пока ящик стоит в очереди обработчика или его разбирает воркер.
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    // Кол-во сообщений, ждущих обработки.
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Кладет сообщение в ящик. Вернет true, если ящик надо поставить в очередь обработчика.
+     */
+    boolean add(T message) {
+        messages.add(message);
+        size.incrementAndGet();
+        return scheduled.compareAndSet(false, true);
+    }
+
+    T poll() {
+        T message = messages.poll();
+        if (message != null) {
+            size.decrementAndGet();
+        }
+        return message;
+    }
+
+    /**
+     * Вызывается воркером, закончившим разбирать ящик.
+     * Вернет true, если в ящике еще есть сообщения и его надо снова поставить в очередь.
+     */
+    boolean release() {
+        if (!messages.isEmpty()) {
+            return true;
+        }
+        scheduled.set(false);
+        // Сообщение могло прийти между проверкой и сбросом флага - его автор ящик в очередь не ставил.
+        return !messages.isEmpty() && scheduled.compareAndSet(false, true);
+    }
+}
@@ -3,6 +3,7 @@ package com.borunovv.wsserver.nio;
 import com.borunovv.contract.Precondition;
 
 import com.borunovv.log.Log;
+import com.borunovv.wsserver.protocol.http.HttpMessage;
 import com.borunovv.wsserver.protocol.websocket.WSMessage;
 import com.borunovv.wsserver.protocol.websocket.WSProtocol;
 import com.borunovv.util.IOUtils;
@@ -13,24 +14,63 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RWSession {
     private SocketChannel channel;
-    private WSProtocol protocol = new WSProtocol();
+    private RWThread rwThread;
+    private volatile SelectionKey selectionKey;
+    // true, если сессия уже стоит в очереди на обновление в R/W потоке.
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    private WSProtocol protocol;
     private IWSMessageHandler requestHandler;
-    private SessionReader sessionReader = new SessionReader(this);
-    private SessionWriter sessionWriter = new SessionWriter(this);
+    private SessionReader sessionReader;
+    private SessionWriter sessionWriter;
     private volatile boolean closeRequested;
     private volatile boolean sessionClosed;
+    // Чтение приостановлено из-за перегрузки обработчика сообщений (только из R/W потока).
+    private boolean readPaused;
+    private long readPausedAtMs;
+    // Сообщения сессии обрабатываются прямо в R/W потоке (см. ServerSettings.setInlineDispatch()).
+    private boolean inlineDispatch;
+    // Когда получен handshake-запрос и готовый ответ на него из пула handshake (забирает R/W поток).
+    private long handshakeStartNanos;
+    private volatile WSMessage completedHandshake;
+    // Для таймаутов (см. ServerSettings.setIdleTimeouts() и setHandshakeTimeoutMs()). Только из R/W потока.
+    private long lastReadMs;
+    private long lastWriteMs;
+    // С какого момента в очереди на отправку есть данные, а запись не продвигается (-1 - не зависла).
+    private long writeStalledSinceMs = -1;
+    private TimingWheel.Timeout handshakeTimeout;
+    private TimingWheel.Timeout readIdleTimeout;
+    private TimingWheel.Timeout writeIdleTimeout;
+    // Ping от сервера (см. ServerSettings.setPing()). Только из R/W потока.
+    private TimingWheel.Timeout pingTimeout;
+    private long firstPingNanos;
+    private long lastPingNanos;
+    private int unansweredPings;
+    // Время приема-передачи по ping/pong: последнее и сглаженное (EWMA), мкс. -1 - еще не измерено.
+    private volatile long lastRttMicros = -1;
+    private volatile long rttMicros = -1;
     private String forwardedIp; // IP from X-Forwarded-For header (реальный ip клиента в случае если имеем дело с прокси)
     private ConcurrentHashMap<String, Object> keyValueStorage = new ConcurrentHashMap<>();
+    // Очередь сообщений сессии на обработку (только в упорядоченном режиме, см. ServerSettings.setOrderedProcessing()).
+    private final OrderedMailbox<WSMessage> mailbox = new OrderedMailbox<>();
 
-    RWSession(SocketChannel channel, IWSMessageHandler requestHandler) {
+    RWSession(SocketChannel channel, RWThread rwThread, IWSMessageHandler requestHandler) {
         Precondition.expected(channel != null, "channel is null");
+        Precondition.expected(rwThread != null, "rwThread is null");
         Precondition.expected(requestHandler != null, "requestHandler is null");
 
         this.channel = channel;
+        this.rwThread = rwThread;
         this.requestHandler = requestHandler;
+        this.protocol = new WSProtocol(rwThread.getSettings().isLazyPayloadDecoding());
+        this.sessionReader = new SessionReader(this, rwThread.getSettings().getMaxMessagesPerRead());
+        this.sessionWriter = new SessionWriter(this,
+                rwThread.getSettings().getMaxFramesPerWrite(),
+                rwThread.getSettings().getMaxBytesPerWrite());
     }
 
     String getClientRemoteAddress() {
@@ -61,66 +101,439 @@ public class RWSession {
 
     public void close() {
         closeRequested = true;
+        scheduleUpdate();
     }
 
-    private void close(SelectionKey key) {
-        sessionClosed = true;
+    /**
+     * Закрывает соединение. Вызывается только из R/W потока.
+     */
+    void close(SelectionKey key) {
         key.cancel();
         IOUtils.close(key.channel());
         closeRequested = true;
+        if (!sessionClosed) {
+            sessionClosed = true;
+            cancelTimeouts();
+            sessionReader.releaseBuffers();
+            rwThread.onSessionClosed(this);
+        }
+    }
+
+    /**
+     * Запускает task в R/W потоке сессии через delayMs (с точностью до тика колеса таймеров,
+     * см. ServerSettings.setTimerWheel()). Если к этому моменту сессия закрыта, task не запускается.
+     * Может вызываться из любого потока. Задача выполняется в R/W потоке, поэтому должна быть короткой.
+     */
+    public TimingWheel.Timeout schedule(long delayMs, Runnable task) {
+        Precondition.expected(task != null, "task is null");
+        return rwThread.schedule(delayMs, () -> {
+            if (!isClosed()) {
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Вызывается R/W потоком после регистрации сессии в селекторе: заводит таймеры таймаутов.
+     */
+    void onRegistered() {
+        ServerSettings settings = rwThread.getSettings();
+        lastReadMs = lastWriteMs = TimingWheel.nowMs();
+        if (settings.getHandshakeTimeoutMs() > 0) {
+            handshakeTimeout = rwThread.schedule(settings.getHandshakeTimeoutMs(), this::onHandshakeTimeout);
+        }
+        if (settings.getReadIdleTimeoutMs() > 0) {
+            readIdleTimeout = rwThread.schedule(settings.getReadIdleTimeoutMs(), this::checkReadIdle);
+        }
+        if (settings.getWriteIdleTimeoutMs() > 0) {
+            writeIdleTimeout = rwThread.schedule(settings.getWriteIdleTimeoutMs(), this::checkWriteIdle);
+        }
+    }
+
+    private void onHandshakeTimeout() {
+        handshakeTimeout = null;
+        // Handshake-запрос уже получен (мог задержаться в пуле handshake) - не наш случай.
+        if (isClosed() || protocol.isHandshakeDone() || protocol.isHandshakePending()) {
+            return;
+        }
+        rwThread.onHandshakeTimeout();
+        closeOnTimeout("No handshake in " + rwThread.getSettings().getHandshakeTimeoutMs() + " ms");
+    }
+
+    // Таймеры простоя не переставляются на каждое чтение/запись: при срабатывании
+    // проверяем время последней активности и, если нужно, заводим таймер на остаток.
+    private void checkReadIdle() {
+        if (isClosed()) {
+            return;
+        }
+        long timeoutMs = rwThread.getSettings().getReadIdleTimeoutMs();
+        long nowMs = TimingWheel.nowMs();
+        // Пока чтение приостановлено нами (или ждем ответ на handshake), клиент не виноват.
+        if (readPaused || protocol.isHandshakePending()) {
+            lastReadMs = nowMs;
+        }
+        long idleMs = nowMs - lastReadMs;
+        if (idleMs >= timeoutMs) {
+            rwThread.onReadIdleTimeout();
+            closeOnTimeout("Nothing read in " + idleMs + " ms");
+        } else {
+            readIdleTimeout = rwThread.schedule(timeoutMs - idleMs, this::checkReadIdle);
+        }
+    }
+
+    private void checkWriteIdle() {
+        if (isClosed()) {
+            return;
+        }
+        long timeoutMs = rwThread.getSettings().getWriteIdleTimeoutMs();
+        long nowMs = TimingWheel.nowMs();
+        if (sessionWriter.getMsgQueueSize() == 0) {
+            writeStalledSinceMs = -1;
+        } else if (writeStalledSinceMs < 0 || lastWriteMs > writeStalledSinceMs) {
+            writeStalledSinceMs = nowMs;
+        } else if (nowMs - writeStalledSinceMs >= timeoutMs) {
+            rwThread.onWriteIdleTimeout();
+            closeOnTimeout("Client doesn't read, write is stalled for " + (nowMs - writeStalledSinceMs) + " ms");
+            return;
+        }
+        long delayMs = writeStalledSinceMs < 0 ?
+                timeoutMs :
+                timeoutMs - (nowMs - writeStalledSinceMs);
+        writeIdleTimeout = rwThread.schedule(delayMs, this::checkWriteIdle);
+    }
+
+    private void startPinging() {
+        long intervalMs = rwThread.getSettings().getPingIntervalMs();
+        if (intervalMs > 0) {
+            pingTimeout = rwThread.schedule(intervalMs, this::onPingTimer);
+        }
+    }
+
+    // Шлем ping с меткой времени. Если на несколько подряд не пришел pong - клиент мертв
+    // (например, полуоткрытое TCP соединение, о котором ОС не узнает).
+    private void onPingTimer() {
+        if (isClosed()) {
+            return;
+        }
+        ServerSettings settings = rwThread.getSettings();
+        if (unansweredPings >= settings.getMaxMissedPongs()) {
+            rwThread.onPongTimeout();
+            closeOnTimeout("No pong for " + unansweredPings + " pings");
+            return;
+        }
+        // Ping, не влезший в очередь на отправку (клиент медленно забирает данные), не считаем.
+        long pingNanos = System.nanoTime();
+        if (queueMessageToClient(WSMessage.makePing(this, ByteBuffer.allocate(8).putLong(pingNanos).array()))) {
+            lastPingNanos = pingNanos;
+            if (firstPingNanos == 0) {
+                firstPingNanos = pingNanos;
+            }
+            unansweredPings++;
+        }
+        pingTimeout = rwThread.schedule(settings.getPingIntervalMs(), this::onPingTimer);
+    }
+
+    /**
+     * Вызывается протоколом при получении pong (в R/W потоке).
+     * Pong на наш ping (с нашей меткой времени) обновляет RTT, остальные игнорируются.
+     */
+    public void onPong(byte[] payload) {
+        if (payload == null || payload.length != 8 || unansweredPings == 0) {
+            return;
+        }
+        long sentNanos = ByteBuffer.wrap(payload).getLong();
+        if (sentNanos < firstPingNanos || sentNanos > lastPingNanos) {
+            return;
+        }
+        unansweredPings = 0;
+
+        long sampleMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentNanos);
+        long average = rttMicros;
+        lastRttMicros = sampleMicros;
+        // Как SRTT в TCP: вес нового значения 1/8.
+        rttMicros = average < 0 ?
+                sampleMicros :
+                average + (sampleMicros - average) / 8;
+        rwThread.getRttHistogram().add(sampleMicros);
+    }
+
+    // RTT по последнему pong, мкс (-1 - еще не измерено, см. ServerSettings.setPing()).
+    public long getLastRttMicros() {
+        return lastRttMicros;
+    }
+
+    // Сглаженный RTT, мкс (-1 - еще не измерено).
+    public long getRttMicros() {
+        return rttMicros;
+    }
+
+    private void closeOnTimeout(String reason) {
+        Log.trace(reason + ". Force to close connection [" + getClientRemoteAddress() + "]");
+        SelectionKey key = selectionKey;
+        if (key != null) {
+            close(key);
+        } else {
+            close();
+        }
+    }
+
+    private void cancelTimeouts() {
+        if (handshakeTimeout != null) {
+            handshakeTimeout.cancel();
+        }
+        if (readIdleTimeout != null) {
+            readIdleTimeout.cancel();
+        }
+        if (writeIdleTimeout != null) {
+            writeIdleTimeout.cancel();
+        }
+        if (pingTimeout != null) {
+            pingTimeout.cancel();
+        }
+    }
+
+    BufferPool getBufferPool() {
+        return rwThread.getBufferPool();
+    }
+
+    ByteBuffer getSharedReadBuffer() {
+        return rwThread.getSharedReadBuffer();
     }
 
     public boolean isClosed() {
         return sessionClosed || closeRequested;
     }
 
-    public void queueMessageToClient(WSMessage msg) {
+    /**
+     * Ставит сообщение в очередь на отправку. Вернет false, если очередь переполнена (сообщение не отправится).
+     */
+    public boolean queueMessageToClient(WSMessage msg) {
         if (sessionWriter.canQueuePacket()) {
-            byte[] rawData = getProtocol().marshall(msg);
-            boolean isSuccess = sessionWriter.queuePacket(ByteBuffer.wrap(rawData), msg);
+            ByteBuffer[] rawData = getProtocol().marshallBuffers(msg);
+            boolean isSuccess = sessionWriter.queuePacket(rawData, msg);
             if (!isSuccess) {
                 throw new RuntimeException("Failed to queue output message (queue is full). Client ip: ["
                         + getClientRemoteAddress() + "]\n" + msg);
             }
+            scheduleUpdate();
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * true, если сессии можно слать рассылки: не закрыта и прошла handshake.
+     */
+    boolean isBroadcastTarget() {
+        return !isClosed() && protocol.isHandshakeDone();
+    }
+
+    /**
+     * Ставит в очередь на отправку готовый фрейм, общий для многих сессий (см. Server.broadcast()).
+     * Вызывается только из R/W потока для сессий, у которых isBroadcastTarget().
+     * Вернет false, если очередь переполнена.
+     */
+    boolean queueSharedFrame(ByteBuffer frame, WSMessage msg) {
+        if (!sessionWriter.queuePacket(new ByteBuffer[]{frame}, msg)) {
+            return false;
+        }
+        SelectionKey key = selectionKey;
+        if (key != null && key.isValid()) {
+            key.interestOps(getSelectionKeyFlags());
+        }
+        return true;
     }
 
     int getSelectionKeyFlags() {
-        return sessionReader.getSelectionKeyFlags()
+        // Пока не отправлен ответ на handshake, клиенту слать нечего - не читаем.
+        return (readPaused || protocol.isHandshakePending() ? 0 : sessionReader.getSelectionKeyFlags())
                 | sessionWriter.getSelectionKeyFlags();
     }
 
-    void onHeartBit(SelectionKey selectionKey) {
+    boolean isReadPaused() {
+        return readPaused;
+    }
+
+    /**
+     * Приостанавливает чтение из клиента (снимает OP_READ), пока обработчик сообщений перегружен.
+     * Клиента тормозит TCP flow control. Вызывается только из R/W потока.
+     */
+    void pauseReading() {
+        if (readPaused || isClosed()) {
+            return;
+        }
+        readPaused = true;
+        readPausedAtMs = System.currentTimeMillis();
+        rwThread.onReadPaused(this);
+
+        SelectionKey key = selectionKey;
+        if (key != null && key.isValid()) {
+            key.interestOps(getSelectionKeyFlags());
+        }
+    }
+
+    /**
+     * Приостанавливает чтение, если обработчик сообщений уже перегружен.
+     * Проверяется перед каждым чтением: прочитанное потом пришлось бы класть в очередь сверх лимита.
+     * Вернет true, если чтение приостановлено. Вызывается только из R/W потока.
+     */
+    boolean pauseReadingIfOverloaded() {
+        if (!readPaused && !inlineDispatch && requestHandler.isOverloaded()) {
+            pauseReading();
+        }
+        return readPaused;
+    }
+
+    /**
+     * Возобновляет чтение. Вызывается только из R/W потока.
+     */
+    void resumeReading() {
+        if (!readPaused) {
+            return;
+        }
+        readPaused = false;
+        rwThread.onReadResumed(System.currentTimeMillis() - readPausedAtMs);
+        // Вернем OP_READ и разберем то, что осталось в хвосте.
+        scheduleUpdate();
+    }
+
+    OrderedMailbox<WSMessage> getMailbox() {
+        return mailbox;
+    }
+
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Просит R/W поток обновить сессию (флажки OP_READ/OP_WRITE, закрытие и т.п.).
+     * Может вызываться из любого потока. Повторные вызовы до обновления схлопываются.
+     */
+    void scheduleUpdate() {
+        if (updateScheduled.compareAndSet(false, true)) {
+            rwThread.scheduleUpdate(this);
+        }
+    }
+
+    /**
+     * Вызывается R/W потоком для сессий, запросивших обновление (см. scheduleUpdate()).
+     */
+    void onUpdate(SelectionKey key) throws IOException {
+        // Сбрасываем флаг до обработки, чтобы не потерять запросы, пришедшие во время нее.
+        updateScheduled.set(false);
         if (closeRequested) {
-            close(selectionKey);
+            close(key);
         } else {
-            sessionReader.onHeartBit(selectionKey);
-            selectionKey.interestOps(getSelectionKeyFlags());
+            WSMessage handshake = completedHandshake;
+            if (handshake != null) {
+                completedHandshake = null;
+                onHandshakeCompleted(handshake);
+            }
+            sessionReader.onUpdate(key);
+            if (key.isValid()) {
+                key.interestOps(getSelectionKeyFlags());
+            }
         }
     }
 
     void onCanRead(SelectionKey key, SocketChannel client) throws IOException {
+        lastReadMs = TimingWheel.nowMs();
         sessionReader.onCanRead(key, client);
     }
 
     void onCanWrite(SelectionKey key, SocketChannel client) throws IOException {
         sessionWriter.onCanWrite(key, client);
+        if (key.isValid()) {
+            // Очередь могла опустеть - снимем OP_WRITE, чтобы селектор не дергал нас зря.
+            key.interestOps(getSelectionKeyFlags());
+        }
+    }
+
+    void onPacketFinish(SelectionKey key, WSMessage msg) {
+        if (!msg.isControlMessage()) {
+            requestHandler.handle(msg);
+        } else if (msg.getType() == WSMessage.Type.HANDSHAKE) {
+            onHandshakeRequest(key, msg);
+        }
     }
 
-    void onPacketStart(SelectionKey key) {
+    private void onHandshakeRequest(SelectionKey key, WSMessage request) {
+        handshakeStartNanos = System.nanoTime();
+        HandshakeProcessor handshakeProcessor = rwThread.getHandshakeProcessor();
+        if (!handshakeProcessor.isOffloaded()) {
+            WSMessage handshake;
+            try {
+                handshake = protocol.completeHandshake(request);
+            } catch (RuntimeException e) {
+                handshakeProcessor.onHandshakeFailed();
+                throw e;
+            }
+            onHandshakeCompleted(handshake);
+            return;
+        }
 
+        if (!handshakeProcessor.submit(() -> completeHandshakeInPool(request))) {
+            Log.trace("Handshake queue is full. Force to close connection [" + getClientRemoteAddress() + "]");
+            close();
+            return;
+        }
+        // Снимаем OP_READ до готовности ответа (см. getSelectionKeyFlags()).
+        if (key.isValid()) {
+            key.interestOps(getSelectionKeyFlags());
+        }
     }
 
-    void onPacketFinish(SelectionKey key, byte[] data, int length) {
-        WSMessage msg = protocol.unmarshall(this, data, length);
-        if (!msg.isControlMessage()) {
-            requestHandler.handle(msg);
+    // Вызывается в потоке пула handshake.
+    private void completeHandshakeInPool(WSMessage request) {
+        try {
+            completedHandshake = protocol.completeHandshake(request);
+        } catch (Exception e) {
+            rwThread.getHandshakeProcessor().onHandshakeFailed();
+            Log.error("Bad handshake. Force to close connection [" + getClientRemoteAddress() + "]", e);
+            close();
+            return;
         }
+        // Ответ отправит R/W поток (см. onUpdate()).
+        scheduleUpdate();
+    }
+
+    private void onHandshakeCompleted(WSMessage handshake) {
+        protocol.onHandshakeCompleted(this, handshake);
+        rwThread.onHandshakeCompleted(this);
+        startPinging();
+        inlineDispatch = rwThread.getSettings().isInlineDispatch(getUriPath(handshake));
+        rwThread.getHandshakeProcessor().onHandshakeDone(System.nanoTime() - handshakeStartNanos);
+    }
+
+    private static String getUriPath(WSMessage handshake) {
+        HttpMessage httpMessage = handshake.getHandShakeMessage();
+        return httpMessage != null && httpMessage.hasRequest() ?
+                httpMessage.getRequest().getUriPath() :
+                null;
+    }
+
+    boolean isInlineDispatch() {
+        return inlineDispatch;
+    }
+
+    RWThread getRWThread() {
+        return rwThread;
     }
 
     void onPacketSent(SelectionKey key, Object customDataAssociatedWithPacket, int packetSize) {
     }
 
+    void onWriteCall(int framesFlushed, long bytesWritten) {
+        if (bytesWritten > 0) {
+            lastWriteMs = TimingWheel.nowMs();
+        }
+        rwThread.onWriteCall(framesFlushed);
+    }
+
     /**
      * Задает реальный IP клиента.
      * Используется когда соединение через прокси (apache/nginx). Тут будет реальный ip клиента.
@@ -3,37 +3,337 @@ package com.borunovv.wsserver.nio;
 import com.borunovv.contract.Precondition;
 import com.borunovv.log.Log;
 import com.borunovv.util.IOUtils;
+import com.borunovv.wsserver.protocol.websocket.WSMessage;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class RWThread extends ServerThread {
-    private static final long HEART_BIT_DELAY_MS = 5;
+    private static final long REGISTER_CLIENTS_TIME_LIMIT_MS = 5;
 
-    private Selector rwSelector;
+    private final int index;
+    private final ServerSettings settings;
+    private final BufferPool bufferPool;
+    // Общий буфер для чтения из всех сессий этого потока.
+    private ByteBuffer sharedReadBuffer;
+    private volatile Selector rwSelector;
+    private volatile Thread ioThread;
     private ConcurrentLinkedQueue<SocketChannel> newClients = new ConcurrentLinkedQueue<>();
+    // Сессии, у которых что-то поменялось (появились данные на отправку, запрошено закрытие и т.п.).
+    private ConcurrentLinkedQueue<RWSession> dirtySessions = new ConcurrentLinkedQueue<>();
+    private final List<RWSession> dirtySessionsBatch = new ArrayList<>();
+    private final AtomicBoolean wakeupRequested = new AtomicBoolean();
+    // Сессии с приостановленным чтением (см. RWSession.pauseReading()). Только из R/W потока.
+    private final Set<RWSession> readPausedSessions = new HashSet<>();
+    private final AtomicBoolean resumeReadingRequested = new AtomicBoolean();
     private IWSMessageHandler requestHandler;
-    private long lastHeartBitTime = 0;
+    private final HandshakeProcessor handshakeProcessor;
+    private final LatencyHistogram rttHistogram;
+    // Таймеры сессий (таймауты простоя, handshake, задачи из RWSession.schedule()). Только из R/W потока.
+    private volatile TimingWheel timingWheel;
+    // Сессии, прошедшие handshake (получатели Server.broadcast()). Только из R/W потока.
+    private final Set<RWSession> handshakenSessions = new HashSet<>();
+    // Задачи для выполнения в R/W потоке (см. execute()).
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Таймеры, заведенные из других потоков (добавляются в колесо R/W потоком).
+    private final ConcurrentLinkedQueue<TimingWheel.Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
 
-    public void add(SocketChannel client) {
+    // Для статистики
+    private final AtomicInteger sessionsCount = new AtomicInteger(0);
+    private final AtomicLong totalSessionsCount = new AtomicLong(0);
+    private final AtomicLong iterationsCount = new AtomicLong(0);
+    private final AtomicLong writeCallsCount = new AtomicLong(0);
+    private final AtomicLong framesFlushedCount = new AtomicLong(0);
+    private volatile int maxFramesPerWriteCall = 0;
+    private final AtomicInteger readPausedSessionsCount = new AtomicInteger(0);
+    private final AtomicLong readPausesCount = new AtomicLong(0);
+    private final AtomicLong readPausesTotalTimeMs = new AtomicLong(0);
+    private volatile long maxReadPauseTimeMs = 0;
+    private final AtomicLong handshakeTimeoutsCount = new AtomicLong(0);
+    private final AtomicLong readIdleTimeoutsCount = new AtomicLong(0);
+    private final AtomicLong writeIdleTimeoutsCount = new AtomicLong(0);
+    private final AtomicLong pongTimeoutsCount = new AtomicLong(0);
+    private final AtomicLong broadcastFramesCount = new AtomicLong(0);
+    private final AtomicLong broadcastDropsCount = new AtomicLong(0);
+
+    void add(SocketChannel client) {
+        queueNewClient(client);
+        wakeup();
+    }
+
+    /**
+     * То же, что add(), но не будит поток: при передаче пачки клиентов
+     * вызывающий будит его один раз в конце (см. onNewClientsQueued()).
+     */
+    void queueNewClient(SocketChannel client) {
+        // Считаем клиента сразу, чтобы балансировка видела и еще не зарегистрированных.
+        sessionsCount.incrementAndGet();
+        totalSessionsCount.incrementAndGet();
         newClients.add(client);
     }
 
-    public RWThread(IWSMessageHandler requestHandler) {
+    void onNewClientsQueued() {
+        wakeup();
+    }
+
+    /**
+     * Ставит сессию в очередь на обновление (см. RWSession.onUpdate()) и будит поток.
+     * Может вызываться из любого потока.
+     */
+    void scheduleUpdate(RWSession session) {
+        dirtySessions.add(session);
+        wakeup();
+    }
+
+    RWThread(int index, ServerSettings settings, BufferPool bufferPool,
+             HandshakeProcessor handshakeProcessor, LatencyHistogram rttHistogram, IWSMessageHandler requestHandler) {
+        Precondition.expected(index >= 0, "index must be >= 0");
+        Precondition.expected(settings != null, "settings is null");
+        Precondition.expected(bufferPool != null, "bufferPool is null");
+        Precondition.expected(handshakeProcessor != null, "handshakeProcessor is null");
+        Precondition.expected(rttHistogram != null, "rttHistogram is null");
         Precondition.expected(requestHandler != null, "requestHandler is null");
+        this.index = index;
+        this.settings = settings;
+        this.bufferPool = bufferPool;
+        this.handshakeProcessor = handshakeProcessor;
+        this.rttHistogram = rttHistogram;
         this.requestHandler = requestHandler;
     }
 
+    public int getIndex() {
+        return index;
+    }
+
+    // Кол-во обслуживаемых сейчас клиентов (включая еще не зарегистрированных в селекторе).
+    public int getSessionsCount() {
+        return sessionsCount.get();
+    }
+
+    // Всего клиентов, переданных этому потоку с момента создания.
+    public long getTotalSessionsCount() {
+        return totalSessionsCount.get();
+    }
+
+    public long getIterationsCount() {
+        return iterationsCount.get();
+    }
+
+    // Кол-во вызовов write() в сокеты клиентов.
+    public long getWriteCallsCount() {
+        return writeCallsCount.get();
+    }
+
+    // Кол-во фреймов, полностью отправленных этими вызовами.
+    public long getFramesFlushedCount() {
+        return framesFlushedCount.get();
+    }
+
+    public int getMaxFramesPerWriteCall() {
+        return maxFramesPerWriteCall;
+    }
+
+    // Кол-во сессий, чтение из которых сейчас приостановлено.
+    public int getReadPausedSessionsCount() {
+        return readPausedSessionsCount.get();
+    }
+
+    // Сколько всего раз приостанавливали чтение сессий.
+    public long getReadPausesCount() {
+        return readPausesCount.get();
+    }
+
+    // Суммарная и максимальная длительность завершившихся пауз чтения.
+    public long getReadPausesTotalTimeMs() {
+        return readPausesTotalTimeMs.get();
+    }
+
+    public long getMaxReadPauseTimeMs() {
+        return maxReadPauseTimeMs;
+    }
+
+    // Кол-во сессий, закрытых из-за того, что не прислали handshake вовремя.
+    public long getHandshakeTimeoutsCount() {
+        return handshakeTimeoutsCount.get();
+    }
+
+    // Кол-во сессий, закрытых из-за простоя чтения и из-за зависшей записи (см. ServerSettings.setIdleTimeouts()).
+    public long getReadIdleTimeoutsCount() {
+        return readIdleTimeoutsCount.get();
+    }
+
+    public long getWriteIdleTimeoutsCount() {
+        return writeIdleTimeoutsCount.get();
+    }
+
+    // Кол-во сессий, закрытых из-за того, что не отвечали на ping (см. ServerSettings.setPing()).
+    public long getPongTimeoutsCount() {
+        return pongTimeoutsCount.get();
+    }
+
+    // Сколько фреймов рассылок поставлено в очереди сессий и сколько не досталось сессиям с полной очередью.
+    public long getBroadcastFramesCount() {
+        return broadcastFramesCount.get();
+    }
+
+    public long getBroadcastDropsCount() {
+        return broadcastDropsCount.get();
+    }
+
+    // Кол-во таймеров в колесе и сколько всего их сработало.
+    public int getTimersCount() {
+        TimingWheel wheel = timingWheel;
+        return wheel != null ? wheel.getTimeoutsCount() : 0;
+    }
+
+    public long getFiredTimersCount() {
+        TimingWheel wheel = timingWheel;
+        return wheel != null ? wheel.getFiredCount() : 0;
+    }
+
+    /**
+     * Запускает task в этом R/W потоке через delayMs. Может вызываться из любого потока.
+     */
+    TimingWheel.Timeout schedule(long delayMs, Runnable task) {
+        if (Thread.currentThread() == ioThread) {
+            return timingWheel.schedule(delayMs, task);
+        }
+        TimingWheel.Timeout timeout = TimingWheel.newTimeout(delayMs, task);
+        newTimeouts.add(timeout);
+        wakeup();
+        return timeout;
+    }
+
+    /**
+     * Выполняет task в этом R/W потоке (на ближайшей итерации). Может вызываться из любого потока.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Рассылка готового фрейма (буфер только для чтения) сессиям этого потока:
+     * sessions == null - всем, прошедшим handshake. Может вызываться из любого потока.
+     */
+    void broadcast(ByteBuffer frame, WSMessage msg, List<RWSession> sessions) {
+        execute(() -> queueSharedFrame(sessions != null ? sessions : handshakenSessions, frame, msg));
+    }
+
+    private void queueSharedFrame(Collection<RWSession> sessions, ByteBuffer frame, WSMessage msg) {
+        long queued = 0;
+        long dropped = 0;
+        for (RWSession session : sessions) {
+            // Закрытые и еще не прошедшие handshake сессии просто пропускаем.
+            if (!session.isBroadcastTarget()) {
+                continue;
+            }
+            if (session.queueSharedFrame(frame.duplicate(), msg)) {
+                queued++;
+            } else {
+                dropped++;
+            }
+        }
+        broadcastFramesCount.addAndGet(queued);
+        broadcastDropsCount.addAndGet(dropped);
+    }
+
+    void onHandshakeCompleted(RWSession session) {
+        handshakenSessions.add(session);
+    }
+
+    /**
+     * Просит возобновить чтение всех приостановленных сессий.
+     * Может вызываться из любого потока.
+     */
+    void resumeReading() {
+        resumeReadingRequested.set(true);
+        wakeup();
+    }
+
+    ServerSettings getSettings() {
+        return settings;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    HandshakeProcessor getHandshakeProcessor() {
+        return handshakeProcessor;
+    }
+
+    LatencyHistogram getRttHistogram() {
+        return rttHistogram;
+    }
+
+    ByteBuffer getSharedReadBuffer() {
+        return sharedReadBuffer;
+    }
+
+    /**
+     * Вызывается писателем сессии после каждого write() в сокет.
+     */
+    void onWriteCall(int framesFlushed) {
+        writeCallsCount.incrementAndGet();
+        framesFlushedCount.addAndGet(framesFlushed);
+        if (framesFlushed > maxFramesPerWriteCall) {
+            maxFramesPerWriteCall = framesFlushed;
+        }
+    }
+
+    void onReadPaused(RWSession session) {
+        if (readPausedSessions.add(session)) {
+            readPausedSessionsCount.incrementAndGet();
+            readPausesCount.incrementAndGet();
+        }
+    }
+
+    void onHandshakeTimeout() {
+        handshakeTimeoutsCount.incrementAndGet();
+    }
+
+    void onReadIdleTimeout() {
+        readIdleTimeoutsCount.incrementAndGet();
+    }
+
+    void onWriteIdleTimeout() {
+        writeIdleTimeoutsCount.incrementAndGet();
+    }
+
+    void onPongTimeout() {
+        pongTimeoutsCount.incrementAndGet();
+    }
+
+    void onReadResumed(long pauseTimeMs) {
+        readPausesTotalTimeMs.addAndGet(pauseTimeMs);
+        if (pauseTimeMs > maxReadPauseTimeMs) {
+            maxReadPauseTimeMs = pauseTimeMs;
+        }
+    }
+
+    @Override
+    protected String getThreadName() {
+        return "RWThread-" + index;
+    }
+
     @Override
     protected void onThreadStart() {
         try {
+            ioThread = Thread.currentThread();
+            sharedReadBuffer = bufferPool.acquire(settings.getReadBufferSize());
             rwSelector = Selector.open();
+            timingWheel = new TimingWheel(settings.getTimerTickMs(), settings.getTimerWheelSize());
         } catch (IOException e) {
             throw new RuntimeException("Failed to initialize R/W NIO thread", e);
         }
@@ -42,19 +342,40 @@ public class RWThread extends ServerThread {
     @Override
     protected void doThreadIteration() {
         try {
+            iterationsCount.incrementAndGet();
+            // Сбрасываем флаг до разбора очередей, чтобы не потерять пробуждение
+            // от тех, кто добавит что-то после разбора, но до select().
+            wakeupRequested.set(false);
             registerNewClients();
+            addNewTimeouts();
+            runTasks();
+            timingWheel.advance();
+            resumeReadPausedSessions();
+            updateDirtySessions();
             processReadyClients();
-            broadcastHeartBitIfNeed();
         } catch (Exception e) {
             onThreadError(e);
         }
     }
 
+    @Override
+    protected void onStopRequested() {
+        wakeup();
+    }
+
     @Override
     protected void onThreadStop() {
-        closeAllSessions(rwSelector);
+        if (rwSelector != null) {
+            closeAllSessions(rwSelector);
+        }
         IOUtils.close(rwSelector);
         rwSelector = null;
+        ioThread = null;
+        newTimeouts.clear();
+        tasks.clear();
+        handshakenSessions.clear();
+        bufferPool.release(sharedReadBuffer);
+        sharedReadBuffer = null;
     }
 
     @Override
@@ -62,26 +383,66 @@ public class RWThread extends ServerThread {
         Log.error("Error in R/W thread:", e);
     }
 
+    private void wakeup() {
+        Selector selector = rwSelector;
+        if (selector != null
+                && Thread.currentThread() != ioThread
+                && wakeupRequested.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
     private void registerNewClients() {
         long start = System.currentTimeMillis();
         SocketChannel client;
         while ((client = newClients.poll()) != null) {
             registerClientInSelector(client);
-            if (System.currentTimeMillis() - start > HEART_BIT_DELAY_MS) {
+            if (System.currentTimeMillis() - start > REGISTER_CLIENTS_TIME_LIMIT_MS) {
                 break;
             }
         }
     }
 
     private void registerClientInSelector(SocketChannel client) {
-        RWSession session = new RWSession(client, requestHandler);
+        RWSession session = new RWSession(client, this, requestHandler);
         try {
-            client.register(rwSelector, session.getSelectionKeyFlags(), session);
+            session.setSelectionKey(client.register(rwSelector, session.getSelectionKeyFlags(), session));
+            session.onRegistered();
         } catch (ClosedChannelException e) {
+            onSessionClosed(session);
             throw new RuntimeException("Failed to register client in R/W selector", e);
         }
     }
 
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                Log.error("Error in R/W thread task", e);
+            }
+        }
+    }
+
+    private void addNewTimeouts() {
+        TimingWheel.Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            timingWheel.add(timeout);
+        }
+    }
+
+    /**
+     * Вызывается сессией ровно один раз, когда она закрыта.
+     */
+    void onSessionClosed(RWSession session) {
+        sessionsCount.decrementAndGet();
+        handshakenSessions.remove(session);
+        if (readPausedSessions.remove(session)) {
+            readPausedSessionsCount.decrementAndGet();
+        }
+    }
+
     private void processReadyClients() {
         List<SelectionKey> keys = selectReadyClients();
         for (SelectionKey key : keys) {
@@ -92,9 +453,61 @@ public class RWThread extends ServerThread {
         }
     }
 
+    private void updateDirtySessions() {
+        // Сначала забираем текущий список, т.к. сессии могут снова пометить себя
+        // во время обработки - их обработаем на следующей итерации.
+        RWSession session;
+        while ((session = dirtySessions.poll()) != null) {
+            dirtySessionsBatch.add(session);
+        }
+
+        try {
+            for (RWSession dirtySession : dirtySessionsBatch) {
+                SelectionKey key = dirtySession.getSelectionKey();
+                if (key == null || !key.isValid()) {
+                    continue;
+                }
+                try {
+                    dirtySession.onUpdate(key);
+                } catch (Exception e) {
+                    onSessionError(key, e);
+                }
+            }
+        } finally {
+            dirtySessionsBatch.clear();
+        }
+    }
+
+    private void resumeReadPausedSessions() {
+        if (!resumeReadingRequested.compareAndSet(true, false)) {
+            return;
+        }
+        for (RWSession session : readPausedSessions) {
+            // Сессия поставит себя в очередь на обновление (вернет OP_READ) - ее обработаем ниже.
+            session.resumeReading();
+        }
+        readPausedSessionsCount.addAndGet(-readPausedSessions.size());
+        readPausedSessions.clear();
+    }
+
+    private boolean hasPendingWork() {
+        return !newClients.isEmpty() || !dirtySessions.isEmpty() || !tasks.isEmpty() || !newTimeouts.isEmpty()
+                || resumeReadingRequested.get();
+    }
+
     private List<SelectionKey> selectReadyClients() {
         try {
-            int count = rwSelector.select(HEART_BIT_DELAY_MS);
+            // Если работа уже есть - не блокируемся. Иначе ждем событий сокетов, wakeup()
+            // или ближайшего тика колеса таймеров.
+            long timerDelayMs = timingWheel.getDelayToNextTickMs();
+            int count;
+            if (hasPendingWork() || timerDelayMs == 0) {
+                count = rwSelector.selectNow();
+            } else if (timerDelayMs > 0) {
+                count = rwSelector.select(timerDelayMs);
+            } else {
+                count = rwSelector.select();
+            }
             return count > 0 ?
                     getValidKeysOnly(rwSelector.selectedKeys()) :
                     Collections.<SelectionKey>emptyList();
@@ -114,14 +527,20 @@ public class RWThread extends ServerThread {
             if (key.isWritable() && key.isValid()) {
                 session.onCanWrite(key, client);
             }
-        } catch (ClientClosedException e) {
-            Log.trace("NIO RW Thread: Client disconnected (" + session.getClientRemoteAddress() + ")");
-            closeClient(key);
         } catch (Exception e) {
+            onSessionError(key, e);
+        }
+    }
+
+    private void onSessionError(SelectionKey key, Exception e) {
+        RWSession session = getSession(key);
+        if (e instanceof ClientClosedException) {
+            Log.trace("NIO RW Thread: Client disconnected (" + session.getClientRemoteAddress() + ")");
+        } else {
             Log.error("NIO RW Thread: Client error. Force to close connection ["
                     + session.getClientRemoteAddress() + "]", e);
-            closeClient(key);
         }
+        closeClient(key);
     }
 
     private void closeAllSessions(Selector rwSelector) {
@@ -133,6 +552,7 @@ public class RWThread extends ServerThread {
         SocketChannel client;
         while ((client = newClients.poll()) != null) {
             IOUtils.close(client);
+            sessionsCount.decrementAndGet();
         }
     }
 
@@ -148,10 +568,12 @@ public class RWThread extends ServerThread {
     }
 
     private void closeClient(SelectionKey key) {
-        key.cancel();
-        try {
-            key.channel().close();
-        } catch (IOException ignore) {
+        RWSession session = getSession(key);
+        if (session != null) {
+            session.close(key);
+        } else {
+            key.cancel();
+            IOUtils.close(key.channel());
         }
     }
 
@@ -168,28 +590,6 @@ public class RWThread extends ServerThread {
         return result;
     }
 
-    private void broadcastHeartBitIfNeed() {
-        if (System.currentTimeMillis() - lastHeartBitTime < HEART_BIT_DELAY_MS) {
-            return;
-        }
-
-        try {
-            Set<SelectionKey> allKeys = getAllSelectionKeys(rwSelector);
-            for (SelectionKey key : allKeys) {
-                RWSession session = getSession(key);
-                if (key.isValid()) {
-                    try {
-                        session.onHeartBit(key);
-                    } catch (Exception e) {
-                        onThreadError(e);
-                    }
-                }
-            }
-        } finally {
-            lastHeartBitTime = System.currentTimeMillis();
-        }
-    }
-
     private RWSession getSession(SelectionKey key) {
         return (RWSession) key.attachment();
     }
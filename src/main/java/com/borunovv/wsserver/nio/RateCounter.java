@@ -0,0 +1,44 @@
+package com.borunovv.wsserver.nio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Счетчик событий в секунду (для статистики): итог за последнюю завершившуюся секунду и максимум.
+ * Потокобезопасен, но на границе секунды пара событий может попасть в соседнюю секунду.
+ */
+final class RateCounter {
+
+    private final AtomicLong second = new AtomicLong(0);
+    private final AtomicLong secondCount = new AtomicLong(0);
+    private volatile long lastSecondRate = 0;
+    private volatile long peakRate = 0;
+
+    void add(long count) {
+        long now = System.currentTimeMillis() / 1000;
+        long current = second.get();
+        if (now != current && second.compareAndSet(current, now)) {
+            long finished = secondCount.getAndSet(0);
+            lastSecondRate = (now == current + 1) ? finished : 0;
+            if (finished > peakRate) {
+                peakRate = finished;
+            }
+        }
+        secondCount.addAndGet(count);
+    }
+
+    // Событий за последнюю завершившуюся секунду.
+    long getRate() {
+        long now = System.currentTimeMillis() / 1000;
+        long current = second.get();
+        if (current == now) {
+            return lastSecondRate;
+        }
+        return current == now - 1 ?
+                secondCount.get() :
+                0;
+    }
+
+    long getPeakRate() {
+        return Math.max(peakRate, getRate());
+    }
+}
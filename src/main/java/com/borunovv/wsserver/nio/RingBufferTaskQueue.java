@@ -0,0 +1,108 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.contract.Precondition;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ограниченная lock-free очередь на кольцевом буфере (алгоритм Д. Вьюкова, bounded MPMC queue).
+ * Буфер аллоцируется один раз, на сообщение ничего не аллоцируется.
+ * Емкость точная, размер считается за O(1).
+ *
+ * У каждой ячейки есть номер "круга" (sequence):
+ * sequence == pos - ячейка свободна для писателя с позицией pos,
+ * sequence == pos + 1 - в ячейке лежит элемент для читателя с позицией pos.
+ * Позиции только растут, индекс ячейки - pos % capacity.
+ */
+public class RingBufferTaskQueue<E> implements TaskQueue<E> {
+
+    private final int capacity;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong enqueuePosition = new AtomicLong(0);
+    private final AtomicLong dequeuePosition = new AtomicLong(0);
+
+    /**
+     * capacity - не меньше 2: при одной ячейке "заполнена для читателя pos" (pos + 1)
+     * совпадает с "свободна для писателя pos + 1", и писатель затер бы непрочитанный элемент.
+     */
+    public RingBufferTaskQueue(int capacity) {
+        Precondition.expected(capacity >= 2, "capacity must be >= 2");
+        this.capacity = capacity;
+        this.elements = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; ++i) {
+            sequences.set(i, i);
+        }
+    }
+
+    @Override
+    public boolean offer(E element) {
+        Precondition.expected(element != null, "element is null");
+
+        long pos = enqueuePosition.get();
+        while (true) {
+            int index = (int) (pos % capacity);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (enqueuePosition.compareAndSet(pos, pos + 1)) {
+                    elements[index] = element;
+                    // Публикуем элемент (volatile запись после записи в ячейку).
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = enqueuePosition.get();
+            } else if (diff < 0) {
+                // Ячейку с прошлого круга еще не прочитали - очередь заполнена.
+                return false;
+            } else {
+                // Другой писатель нас опередил.
+                pos = enqueuePosition.get();
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = dequeuePosition.get();
+        while (true) {
+            int index = (int) (pos % capacity);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (dequeuePosition.compareAndSet(pos, pos + 1)) {
+                    E element = (E) elements[index];
+                    elements[index] = null;
+                    // Освобождаем ячейку для писателя следующего круга.
+                    sequences.set(index, pos + capacity);
+                    return element;
+                }
+                pos = dequeuePosition.get();
+            } else if (diff < 0) {
+                // Ячейку еще не заполнили - очередь пуста.
+                return null;
+            } else {
+                // Другой читатель нас опередил.
+                pos = dequeuePosition.get();
+            }
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public int size() {
+        // Позиции читаются неатомарно вместе, поэтому обрезаем по границам.
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -5,60 +5,387 @@ import com.borunovv.log.Log;
 import com.borunovv.util.NIOUtils;
 import com.borunovv.wsserver.protocol.websocket.WSMessage;
 
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 
 public class Server implements Consumer<SocketChannel>, IWSMessageHandler {
-    private static final int ACCEPT_QUEUE_SIZE = 100;
     private static final int PROCESSOR_QUEUE_WAIT_TIMEOUT_MS = 100;
-    private static final int PROCESSOR_QUEUE_CAPACITY = 10000;
 
-    private AcceptThread acceptThread;
-    private RWThread rwThread;
-    private ConcurrentMessageProcessor<WSMessage> messageProcessor;
+    private final ServerSettings settings;
+    private final BufferPool bufferPool;
+    private final HandshakeProcessor handshakeProcessor;
+    private final List<AcceptThread> acceptThreads;
+    private final RateCounter acceptRate = new RateCounter();
+    private final LatencyHistogram rttHistogram = new LatencyHistogram();
+    private List<RWThread> rwThreads;
+    private final AtomicInteger nextRWThreadIndex = new AtomicInteger();
+    private AbstractMessageProcessor<WSMessage> messageProcessor;
+    // null, если обработка в R/W потоках не включена.
+    private final InlineDispatcher inlineDispatcher;
 
     public Server(int port, int threadsCount,
                   IMessageHandler<WSMessage> messageHandler) {
+        this(port, new ServerSettings().setWorkerThreadsCount(threadsCount), messageHandler);
+    }
+
+    public Server(int port, ServerSettings settings,
+                  IMessageHandler<WSMessage> messageHandler) {
         Precondition.expected(port > 0 && port <= 0xFFFF, "port must be in (1..65535)");
+        Precondition.expected(settings != null, "settings must be non null");
         Precondition.expected(messageHandler != null, "messageHandler must be non null");
 
-        this.acceptThread = new AcceptThread(port, ACCEPT_QUEUE_SIZE, this);
-        this.rwThread = new RWThread(this);
-        this.messageProcessor = new ConcurrentMessageProcessor<>(
-                threadsCount,
-                PROCESSOR_QUEUE_CAPACITY,
-                PROCESSOR_QUEUE_WAIT_TIMEOUT_MS,
-                messageHandler);
+        this.settings = settings;
+        this.bufferPool = new BufferPool(settings.getBufferPoolMaxBytes());
+        this.handshakeProcessor = new HandshakeProcessor(
+                settings.getHandshakeThreadsCount(), settings.getHandshakeQueueCapacity());
+        this.acceptThreads = createAcceptThreads(port, settings);
+        this.rwThreads = new ArrayList<>(settings.getRWThreadsCount());
+        for (int i = 0; i < settings.getRWThreadsCount(); ++i) {
+            rwThreads.add(new RWThread(i, settings, bufferPool, handshakeProcessor, rttHistogram, this));
+        }
+        this.inlineDispatcher = settings.hasInlineDispatch() ?
+                new InlineDispatcher(messageHandler, settings.getRWThreadsCount(), settings.getInlineHandlerBudgetMicros()) :
+                null;
+        this.messageProcessor = createMessageProcessor(settings, messageHandler);
+        this.messageProcessor.setBatching(settings.getMaxBatchSize(), settings.getMaxBatchDelayMicros());
+        this.messageProcessor.setAsyncLimits(settings.getMaxInFlightAsyncMessages(), settings.getAsyncHandlerTimeoutMs());
+        this.messageProcessor.setQueueWatermarks(
+                Math.min(settings.getReadPauseQueueSize(), settings.getProcessorQueueCapacity()),
+                Math.min(settings.getReadResumeQueueSize(), settings.getProcessorQueueCapacity() - 1),
+                this::resumeReading);
+        if (settings.isOrderedProcessing()) {
+            this.messageProcessor.setMailboxResolver(msg -> msg.getSession().getMailbox());
+        } else if (settings.getTaskQueueType() == ServerSettings.TaskQueueType.RING_BUFFER) {
+            // Запас сверх лимита - на сообщения, прочитанные до паузы чтения (не больше одного на R/W поток).
+            this.messageProcessor.setTaskQueue(new RingBufferTaskQueue<>(
+                    settings.getProcessorQueueCapacity() + settings.getRWThreadsCount()));
+        }
     }
 
     public void start() throws ServerException {
         stop();
         messageProcessor.start();
-        rwThread.start();
-        acceptThread.start();
+        if (inlineDispatcher != null) {
+            inlineDispatcher.start();
+        }
+        handshakeProcessor.start();
+        for (RWThread rwThread : rwThreads) {
+            rwThread.start();
+        }
+        for (AcceptThread acceptThread : acceptThreads) {
+            acceptThread.start();
+        }
     }
 
     public void stop() {
-        acceptThread.stop();
-        rwThread.stop();
+        for (AcceptThread acceptThread : acceptThreads) {
+            acceptThread.stop();
+        }
+        for (RWThread rwThread : rwThreads) {
+            rwThread.stop();
+        }
+        handshakeProcessor.stop();
+        if (inlineDispatcher != null) {
+            inlineDispatcher.stop();
+        }
         messageProcessor.stop();
     }
 
     public boolean isRunning() {
-        return acceptThread.isRunning() || rwThread.isRunning();
+        for (AcceptThread acceptThread : acceptThreads) {
+            if (acceptThread.isRunning()) {
+                return true;
+            }
+        }
+        for (RWThread rwThread : rwThreads) {
+            if (rwThread.isRunning()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * R/W потоки сервера (для статистики).
+     */
+    public List<RWThread> getRWThreads() {
+        return Collections.unmodifiableList(rwThreads);
+    }
+
+    /**
+     * Пул буферов для I/O сессий (для статистики).
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Обработчик сообщений клиентов (для статистики).
+     */
+    public AbstractMessageProcessor<WSMessage> getMessageProcessor() {
+        return messageProcessor;
+    }
+
+    /**
+     * Обработка handshake (для статистики).
+     */
+    public HandshakeProcessor getHandshakeProcessor() {
+        return handshakeProcessor;
+    }
+
+    /**
+     * Обработка сообщений в R/W потоках (для статистики). null, если не включена.
+     */
+    public InlineDispatcher getInlineDispatcher() {
+        return inlineDispatcher;
+    }
+
+    // Для статистики.
+    public int getSessionsCount() {
+        int total = 0;
+        for (RWThread rwThread : rwThreads) {
+            total += rwThread.getSessionsCount();
+        }
+        return total;
+    }
+
+    // Кол-во сессий, чтение из которых сейчас приостановлено из-за перегрузки обработчика.
+    public int getReadPausedSessionsCount() {
+        int total = 0;
+        for (RWThread rwThread : rwThreads) {
+            total += rwThread.getReadPausedSessionsCount();
+        }
+        return total;
+    }
+
+    /**
+     * RTT всех сессий по ping/pong (если включены, см. ServerSettings.setPing()).
+     */
+    public LatencyHistogram getRttHistogram() {
+        return rttHistogram;
+    }
+
+    // Кол-во сессий, закрытых по таймаутам (handshake, простой чтения, зависшая запись, нет pong).
+    public long getTimedOutSessionsCount() {
+        long total = 0;
+        for (RWThread rwThread : rwThreads) {
+            total += rwThread.getHandshakeTimeoutsCount()
+                    + rwThread.getReadIdleTimeoutsCount()
+                    + rwThread.getWriteIdleTimeoutsCount()
+                    + rwThread.getPongTimeoutsCount();
+        }
+        return total;
+    }
+
+    // Кол-во потоков приема соединений (см. ServerSettings.setAcceptorThreadsCount()).
+    public int getAcceptorThreadsCount() {
+        return acceptThreads.size();
+    }
+
+    // Кол-во принятых соединений.
+    public long getAcceptedClientsCount() {
+        long total = 0;
+        for (AcceptThread acceptThread : acceptThreads) {
+            total += acceptThread.getAcceptedCount();
+        }
+        return total;
+    }
+
+    public long getAcceptErrorsCount() {
+        long total = 0;
+        for (AcceptThread acceptThread : acceptThreads) {
+            total += acceptThread.getAcceptErrorsCount();
+        }
+        return total;
+    }
+
+    // Новых соединений в секунду: за последнюю завершившуюся секунду и максимум.
+    public long getAcceptRate() {
+        return acceptRate.getRate();
+    }
+
+    public long getPeakAcceptRate() {
+        return acceptRate.getPeakRate();
+    }
+
+    // Максимум соединений, принятых одним потоком за один проход (всплеск подключений).
+    public int getMaxAcceptBurst() {
+        int max = 0;
+        for (AcceptThread acceptThread : acceptThreads) {
+            max = Math.max(max, acceptThread.getMaxAcceptBurst());
+        }
+        return max;
     }
 
     @Override
     public void accept(SocketChannel client) {
-        String ip = NIOUtils.tryGetRemoteIpAddress(client);
-        int port = NIOUtils.tryGetRemotePort(client);
-        Log.info("New client connected: [" + ip + "]:" + port);
-        rwThread.add(client);
+        acceptAll(Collections.singletonList(client));
+    }
+
+    /**
+     * Раздает пачку новых клиентов R/W потокам. Каждый R/W поток будится один раз на пачку.
+     */
+    void acceptAll(List<SocketChannel> clients) {
+        if (clients.size() == 1) {
+            SocketChannel client = clients.get(0);
+            Log.info("New client connected: [" + NIOUtils.tryGetRemoteIpAddress(client) + "]:"
+                    + NIOUtils.tryGetRemotePort(client));
+        } else {
+            // При всплеске подключений не пишем в лог каждого.
+            Log.info("New clients connected: " + clients.size());
+        }
+
+        boolean[] queued = new boolean[rwThreads.size()];
+        for (SocketChannel client : clients) {
+            RWThread rwThread = chooseRWThread();
+            rwThread.queueNewClient(client);
+            queued[rwThread.getIndex()] = true;
+        }
+
+        for (int i = 0; i < queued.length; ++i) {
+            if (queued[i]) {
+                rwThreads.get(i).onNewClientsQueued();
+            }
+        }
     }
 
     @Override
     public void handle(WSMessage msg) {
-        messageProcessor.accept(msg);
+        RWSession session = msg.getSession();
+        if (session.isInlineDispatch()) {
+            inlineDispatcher.dispatch(msg, session.getRWThread().getIndex());
+            return;
+        }
+        // Вызывается из R/W потока, поэтому не ждем освобождения места в очереди:
+        // это остановило бы I/O всех сессий потока. Вместо этого тормозим чтение у присылающих
+        // (см. isOverloaded()), а уже прочитанное кладем сверх лимита - не выбрасывать же его.
+        messageProcessor.offerOverLimit(msg);
+        if (messageProcessor.isOverloaded()) {
+            session.pauseReading();
+        }
+    }
+
+    @Override
+    public boolean isOverloaded() {
+        return messageProcessor.isOverloaded();
+    }
+
+    /**
+     * Рассылает сообщение (UTF8 или BINARY) всем сессиям, прошедшим handshake.
+     * Фрейм кодируется один раз, сессии отправляют общий буфер только для чтения;
+     * по своим сессиям рассылает каждый R/W поток. Может вызываться из любого потока.
+     * Сессиям с переполненной очередью на отправку сообщение не достается (см. RWThread.getBroadcastDropsCount()).
+     */
+    public void broadcast(WSMessage msg) {
+        ByteBuffer frame = msg.marshallReadOnly();
+        for (RWThread rwThread : rwThreads) {
+            rwThread.broadcast(frame, msg, null);
+        }
+    }
+
+    /**
+     * То же, что broadcast(msg), но только заданным сессиям.
+     */
+    public void broadcast(WSMessage msg, Collection<RWSession> sessions) {
+        Precondition.expected(sessions != null, "sessions is null");
+        ByteBuffer frame = msg.marshallReadOnly();
+        List<List<RWSession>> sessionsByThread = new ArrayList<>(rwThreads.size());
+        for (int i = 0; i < rwThreads.size(); ++i) {
+            sessionsByThread.add(new ArrayList<>());
+        }
+        for (RWSession session : sessions) {
+            sessionsByThread.get(session.getRWThread().getIndex()).add(session);
+        }
+        for (int i = 0; i < rwThreads.size(); ++i) {
+            if (!sessionsByThread.get(i).isEmpty()) {
+                rwThreads.get(i).broadcast(frame, msg, sessionsByThread.get(i));
+            }
+        }
+    }
+
+    // Вызывается обработчиком сообщений, когда очередь разгреблась.
+    private void resumeReading() {
+        for (RWThread rwThread : rwThreads) {
+            rwThread.resumeReading();
+        }
+    }
+
+    private List<AcceptThread> createAcceptThreads(int port, ServerSettings settings) {
+        int count = settings.getAcceptorThreadsCount();
+        SocketOption<Boolean> reusePortOption = null;
+        if (count > 1) {
+            reusePortOption = AcceptThread.findReusePortOption();
+            if (reusePortOption == null) {
+                Log.warn("SO_REUSEPORT is not supported by this JVM/OS (" + System.getProperty("java.version")
+                        + ", " + System.getProperty("os.name") + "). Falling back to a single accept thread.");
+                count = 1;
+            }
+        }
+
+        List<AcceptThread> result = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            result.add(new AcceptThread(i, port, settings.getAcceptBacklog(), reusePortOption,
+                    acceptRate, this::acceptAll));
+        }
+        return result;
+    }
+
+    private static AbstractMessageProcessor<WSMessage> createMessageProcessor(
+            ServerSettings settings, IMessageHandler<WSMessage> messageHandler) {
+
+        switch (settings.getProcessorType()) {
+            case VIRTUAL_THREADS:
+                return new VirtualThreadMessageProcessor<>(
+                        settings.getMaxInFlightMessages(),
+                        settings.getProcessorQueueCapacity(),
+                        PROCESSOR_QUEUE_WAIT_TIMEOUT_MS,
+                        messageHandler);
+            case THREAD_POOL:
+            default:
+                ConcurrentMessageProcessor<WSMessage> processor = new ConcurrentMessageProcessor<>(
+                        settings.getWorkerThreadsCount(),
+                        settings.getProcessorQueueCapacity(),
+                        PROCESSOR_QUEUE_WAIT_TIMEOUT_MS,
+                        messageHandler);
+                if (settings.isElasticWorkers()) {
+                    processor.setElasticWorkers(
+                            settings.getMinWorkerThreadsCount(),
+                            settings.getMaxWorkerThreadsCount(),
+                            settings.getWorkersGrowQueueSize(),
+                            settings.getWorkersGrowQueueWaitMs(),
+                            settings.getWorkersShrinkIdleMs());
+                }
+                return processor;
+        }
+    }
+
+    private RWThread chooseRWThread() {
+        if (rwThreads.size() == 1) {
+            return rwThreads.get(0);
+        }
+
+        switch (settings.getReactorBalancing()) {
+            case LEAST_CONNECTIONS:
+                RWThread best = rwThreads.get(0);
+                for (int i = 1; i < rwThreads.size(); ++i) {
+                    RWThread candidate = rwThreads.get(i);
+                    if (candidate.getSessionsCount() < best.getSessionsCount()) {
+                        best = candidate;
+                    }
+                }
+                return best;
+            case ROUND_ROBIN:
+            default:
+                int index = (nextRWThreadIndex.getAndIncrement() & Integer.MAX_VALUE) % rwThreads.size();
+                return rwThreads.get(index);
+        }
     }
 }
@@ -0,0 +1,562 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.contract.Precondition;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Настройки сервера.
+ * Все сеттеры возвращают this, чтобы можно было писать цепочкой.
+ */
+public class ServerSettings {
+
+    /**
+     * Стратегия распределения новых клиентов по R/W потокам (реакторам).
+     */
+    public enum ReactorBalancing {ROUND_ROBIN, LEAST_CONNECTIONS}
+
+    /**
+     * Чем обрабатываются сообщения клиентов:
+     * THREAD_POOL - фиксированный пул воркеров (см. ConcurrentMessageProcessor),
+     * VIRTUAL_THREADS - по виртуальному потоку на сообщение (см. VirtualThreadMessageProcessor).
+     */
+    public enum ProcessorType {THREAD_POOL, VIRTUAL_THREADS}
+
+    /**
+     * Реализация очереди сообщений на обработку:
+     * LINKED - связный список (см. LinkedTaskQueue),
+     * RING_BUFFER - преаллоцированный кольцевой буфер без аллокаций на сообщение (см. RingBufferTaskQueue).
+     * В упорядоченном режиме (см. setOrderedProcessing()) сообщения лежат в почтовых ящиках сессий,
+     * и эта настройка не используется.
+     */
+    public enum TaskQueueType {LINKED, RING_BUFFER}
+
+    private int workerThreadsCount = 4;
+    private int rwThreadsCount = Runtime.getRuntime().availableProcessors();
+    private ReactorBalancing reactorBalancing = ReactorBalancing.LEAST_CONNECTIONS;
+    private int maxFramesPerWrite = 64;
+    private int maxBytesPerWrite = 256 * 1024;
+    private long bufferPoolMaxBytes = 64L * 1024 * 1024;
+    private int readBufferSize = 64 * 1024;
+    private int maxMessagesPerRead = 64;
+    private int processorQueueCapacity = 10000;
+    private int readPauseQueueSize = 8000;
+    private int readResumeQueueSize = 4000;
+    private boolean orderedProcessing = false;
+    private ProcessorType processorType = ProcessorType.THREAD_POOL;
+    private int maxInFlightMessages = 10000;
+    private TaskQueueType taskQueueType = TaskQueueType.LINKED;
+    private int maxBatchSize = 64;
+    private long maxBatchDelayMicros = 0;
+    private int maxInFlightAsyncMessages = 10000;
+    private long asyncHandlerTimeoutMs = 30 * 1000;
+    private int acceptBacklog = 1024;
+    private int acceptorThreadsCount = 1;
+    private boolean lazyPayloadDecoding = false;
+    private long timerTickMs = 10;
+    private int timerWheelSize = 512;
+    private long handshakeTimeoutMs = 10 * 1000;
+    private long readIdleTimeoutMs = 0;
+    private long writeIdleTimeoutMs = 0;
+    private long pingIntervalMs = 0;
+    private int maxMissedPongs = 3;
+    private int handshakeThreadsCount = 0;
+    private int handshakeQueueCapacity = 10000;
+    private boolean inlineDispatch = false;
+    private final Set<String> inlineDispatchPaths = new HashSet<>();
+    private long inlineHandlerBudgetMicros = 500;
+    private boolean elasticWorkers = false;
+    private int minWorkerThreadsCount = 1;
+    private int maxWorkerThreadsCount = 4;
+    private int workersGrowQueueSize = 100;
+    private long workersGrowQueueWaitMs = 5;
+    private long workersShrinkIdleMs = 60 * 1000;
+
+    public int getWorkerThreadsCount() {
+        return workerThreadsCount;
+    }
+
+    /**
+     * Кол-во потоков, обрабатывающих сообщения клиентов (см. IMessageHandler).
+     */
+    public ServerSettings setWorkerThreadsCount(int workerThreadsCount) {
+        Precondition.expected(workerThreadsCount > 0, "workerThreadsCount must be > 0");
+        this.workerThreadsCount = workerThreadsCount;
+        return this;
+    }
+
+    public int getMaxInFlightAsyncMessages() {
+        return maxInFlightAsyncMessages;
+    }
+
+    public long getAsyncHandlerTimeoutMs() {
+        return asyncHandlerTimeoutMs;
+    }
+
+    /**
+     * Ограничения для асинхронного обработчика (IAsyncMessageHandler):
+     * сколько максимум обработок не завершено одновременно и сколько ждать завершения каждой
+     * (0 - без ограничения).
+     */
+    public ServerSettings setAsyncHandlerLimits(int maxInFlightAsyncMessages, long asyncHandlerTimeoutMs) {
+        Precondition.expected(maxInFlightAsyncMessages > 0, "maxInFlightAsyncMessages must be > 0");
+        Precondition.expected(asyncHandlerTimeoutMs >= 0, "asyncHandlerTimeoutMs must be >= 0");
+        this.maxInFlightAsyncMessages = maxInFlightAsyncMessages;
+        this.asyncHandlerTimeoutMs = asyncHandlerTimeoutMs;
+        return this;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * Размер очереди установленных, но еще не принятых соединений (backlog слушающего сокета).
+     * При массовом подключении переполнение этой очереди означает потерю SYN у клиентов.
+     * ОС может ограничить значение сверху (например, net.core.somaxconn в Linux).
+     */
+    public ServerSettings setAcceptBacklog(int acceptBacklog) {
+        Precondition.expected(acceptBacklog > 0, "acceptBacklog must be > 0");
+        this.acceptBacklog = acceptBacklog;
+        return this;
+    }
+
+    public int getAcceptorThreadsCount() {
+        return acceptorThreadsCount;
+    }
+
+    /**
+     * Кол-во потоков приема соединений. Если больше 1, каждый поток слушает порт своим сокетом
+     * с SO_REUSEPORT, и ОС (Linux) распределяет между ними новые соединения.
+     * Без поддержки SO_REUSEPORT (Java 8, Windows и т.п.) используется один поток (с предупреждением в логе).
+     * Внимание: с SO_REUSEPORT слушать тот же порт сможет и другой процесс того же пользователя.
+     */
+    public ServerSettings setAcceptorThreadsCount(int acceptorThreadsCount) {
+        Precondition.expected(acceptorThreadsCount > 0, "acceptorThreadsCount must be > 0");
+        this.acceptorThreadsCount = acceptorThreadsCount;
+        return this;
+    }
+
+    public int getHandshakeThreadsCount() {
+        return handshakeThreadsCount;
+    }
+
+    public int getHandshakeQueueCapacity() {
+        return handshakeQueueCapacity;
+    }
+
+    /**
+     * Выполнять websocket handshake (разбор запроса, SHA-1, Base64) в отдельном пуле из threadsCount потоков,
+     * а не в R/W потоках. До отправки ответа чтение из сессии не ведется.
+     * Если в очереди пула уже queueCapacity handshake, новые соединения закрываются.
+     * threadsCount = 0 (по умолчанию) - handshake выполняются в R/W потоках.
+     */
+    public ServerSettings setHandshakeThreads(int threadsCount, int queueCapacity) {
+        Precondition.expected(threadsCount >= 0, "threadsCount must be >= 0");
+        Precondition.expected(queueCapacity > 0, "queueCapacity must be > 0");
+        this.handshakeThreadsCount = threadsCount;
+        this.handshakeQueueCapacity = queueCapacity;
+        return this;
+    }
+
+    public long getTimerTickMs() {
+        return timerTickMs;
+    }
+
+    public int getTimerWheelSize() {
+        return timerWheelSize;
+    }
+
+    /**
+     * Колесо таймеров R/W потоков (таймауты и RWSession.schedule()): длительность тика (она же точность
+     * срабатывания) и кол-во ячеек (степень двойки). Таймеры дальше одного оборота (tickMs * wheelSize)
+     * просто ждут своего оборота в ячейке.
+     */
+    public ServerSettings setTimerWheel(long tickMs, int wheelSize) {
+        Precondition.expected(tickMs > 0, "tickMs must be > 0");
+        Precondition.expected(wheelSize > 0 && Integer.bitCount(wheelSize) == 1, "wheelSize must be a power of 2");
+        this.timerTickMs = tickMs;
+        this.timerWheelSize = wheelSize;
+        return this;
+    }
+
+    public long getHandshakeTimeoutMs() {
+        return handshakeTimeoutMs;
+    }
+
+    /**
+     * Соединение закрывается, если клиент не прислал handshake-запрос за это время после подключения.
+     * 0 - не ограничено.
+     */
+    public ServerSettings setHandshakeTimeoutMs(long handshakeTimeoutMs) {
+        Precondition.expected(handshakeTimeoutMs >= 0, "handshakeTimeoutMs must be >= 0");
+        this.handshakeTimeoutMs = handshakeTimeoutMs;
+        return this;
+    }
+
+    public long getReadIdleTimeoutMs() {
+        return readIdleTimeoutMs;
+    }
+
+    public long getWriteIdleTimeoutMs() {
+        return writeIdleTimeoutMs;
+    }
+
+    /**
+     * Таймауты простоя сессии (0 - выключен, по умолчанию оба выключены).
+     * readIdleTimeoutMs - от клиента ничего не пришло за это время (паузы чтения из-за перегрузки не в счет).
+     * writeIdleTimeoutMs - в очереди на отправку есть данные, а клиент их не забирает (запись не продвигается).
+     * Зависшая запись обнаруживается не раньше чем через writeIdleTimeoutMs и не позже чем через два таких срока.
+     */
+    public ServerSettings setIdleTimeouts(long readIdleTimeoutMs, long writeIdleTimeoutMs) {
+        Precondition.expected(readIdleTimeoutMs >= 0, "readIdleTimeoutMs must be >= 0");
+        Precondition.expected(writeIdleTimeoutMs >= 0, "writeIdleTimeoutMs must be >= 0");
+        this.readIdleTimeoutMs = readIdleTimeoutMs;
+        this.writeIdleTimeoutMs = writeIdleTimeoutMs;
+        return this;
+    }
+
+    public long getPingIntervalMs() {
+        return pingIntervalMs;
+    }
+
+    public int getMaxMissedPongs() {
+        return maxMissedPongs;
+    }
+
+    /**
+     * Сервер шлет каждой сессии ping с меткой времени раз в intervalMs (0 - не шлет, по умолчанию).
+     * По pong считается RTT сессии (RWSession.getRttMicros()) и общая гистограмма (Server.getRttHistogram()).
+     * Если подряд maxMissedPongs ping остались без ответа, сессия закрывается.
+     */
+    public ServerSettings setPing(long intervalMs, int maxMissedPongs) {
+        Precondition.expected(intervalMs >= 0, "intervalMs must be >= 0");
+        Precondition.expected(maxMissedPongs > 0, "maxMissedPongs must be > 0");
+        this.pingIntervalMs = intervalMs;
+        this.maxMissedPongs = maxMissedPongs;
+        return this;
+    }
+
+    public boolean isLazyPayloadDecoding() {
+        return lazyPayloadDecoding;
+    }
+
+    /**
+     * true - R/W поток только выделяет фреймы и копирует payload, а демаскирование и декодирование
+     * текста в UTF-8 происходят при первом обращении к содержимому сообщения (обычно в воркере).
+     * Разгружает R/W потоки при больших текстовых сообщениях.
+     * Фрагментированные сообщения по-прежнему демаскируются сразу.
+     */
+    public ServerSettings setLazyPayloadDecoding(boolean lazyPayloadDecoding) {
+        this.lazyPayloadDecoding = lazyPayloadDecoding;
+        return this;
+    }
+
+    /**
+     * true, если сообщения сессий, подключившихся по данному пути (URI handshake),
+     * обрабатываются прямо в R/W потоке (см. setInlineDispatch()).
+     */
+    public boolean isInlineDispatch(String uriPath) {
+        return inlineDispatch || (uriPath != null && inlineDispatchPaths.contains(uriPath));
+    }
+
+    // true, если хоть какие-то сессии обрабатываются в R/W потоке.
+    public boolean hasInlineDispatch() {
+        return inlineDispatch || !inlineDispatchPaths.isEmpty();
+    }
+
+    /**
+     * true - обработчик сообщений вызывается прямо в R/W потоке, без очереди и воркеров.
+     * Только для дешевых обработчиков (микросекунды): пока обработчик работает,
+     * R/W поток не обслуживает другие сессии. См. также setInlineHandlerBudgetMicros().
+     */
+    public ServerSettings setInlineDispatch(boolean inlineDispatch) {
+        this.inlineDispatch = inlineDispatch;
+        return this;
+    }
+
+    /**
+     * То же, что setInlineDispatch(true), но только для сессий, подключившихся по данному пути
+     * (например "/ack").
+     */
+    public ServerSettings addInlineDispatchPath(String uriPath) {
+        Precondition.expected(uriPath != null && !uriPath.isEmpty(), "uriPath is empty");
+        inlineDispatchPaths.add(uriPath);
+        return this;
+    }
+
+    public long getInlineHandlerBudgetMicros() {
+        return inlineHandlerBudgetMicros;
+    }
+
+    /**
+     * Бюджет времени обработчика в R/W потоке. Превышения считаются и логируются.
+     */
+    public ServerSettings setInlineHandlerBudgetMicros(long inlineHandlerBudgetMicros) {
+        Precondition.expected(inlineHandlerBudgetMicros > 0, "inlineHandlerBudgetMicros must be > 0");
+        this.inlineHandlerBudgetMicros = inlineHandlerBudgetMicros;
+        return this;
+    }
+
+    public boolean isElasticWorkers() {
+        return elasticWorkers;
+    }
+
+    public int getMinWorkerThreadsCount() {
+        return minWorkerThreadsCount;
+    }
+
+    public int getMaxWorkerThreadsCount() {
+        return maxWorkerThreadsCount;
+    }
+
+    /**
+     * Эластичный пул воркеров (вместо фиксированного setWorkerThreadsCount()):
+     * воркеры добавляются под нагрузкой и убираются при простое (см. setWorkersScaling()).
+     * Только для ProcessorType.THREAD_POOL.
+     */
+    public ServerSettings setElasticWorkers(int minWorkerThreadsCount, int maxWorkerThreadsCount) {
+        Precondition.expected(minWorkerThreadsCount > 0, "minWorkerThreadsCount must be > 0");
+        Precondition.expected(maxWorkerThreadsCount >= minWorkerThreadsCount,
+                "maxWorkerThreadsCount must be >= minWorkerThreadsCount");
+        this.elasticWorkers = true;
+        this.minWorkerThreadsCount = minWorkerThreadsCount;
+        this.maxWorkerThreadsCount = maxWorkerThreadsCount;
+        return this;
+    }
+
+    public int getWorkersGrowQueueSize() {
+        return workersGrowQueueSize;
+    }
+
+    public long getWorkersGrowQueueWaitMs() {
+        return workersGrowQueueWaitMs;
+    }
+
+    public long getWorkersShrinkIdleMs() {
+        return workersShrinkIdleMs;
+    }
+
+    /**
+     * Пороги эластичного пула воркеров.
+     * Воркер добавляется, когда все заняты и в очереди не меньше growQueueSize сообщений
+     * или она не пустеет уже growQueueWaitMs. Воркер убирается, проспав без работы shrinkIdleMs.
+     */
+    public ServerSettings setWorkersScaling(int growQueueSize, long growQueueWaitMs, long shrinkIdleMs) {
+        Precondition.expected(growQueueSize > 0, "growQueueSize must be > 0");
+        Precondition.expected(growQueueWaitMs > 0, "growQueueWaitMs must be > 0");
+        Precondition.expected(shrinkIdleMs > 0, "shrinkIdleMs must be > 0");
+        this.workersGrowQueueSize = growQueueSize;
+        this.workersGrowQueueWaitMs = growQueueWaitMs;
+        this.workersShrinkIdleMs = shrinkIdleMs;
+        return this;
+    }
+
+    public int getRWThreadsCount() {
+        return rwThreadsCount;
+    }
+
+    /**
+     * Кол-во R/W потоков (у каждого свой селектор), между которыми делятся клиенты.
+     * По умолчанию - по кол-ву ядер.
+     */
+    public ServerSettings setRWThreadsCount(int rwThreadsCount) {
+        Precondition.expected(rwThreadsCount > 0, "rwThreadsCount must be > 0");
+        this.rwThreadsCount = rwThreadsCount;
+        return this;
+    }
+
+    public ReactorBalancing getReactorBalancing() {
+        return reactorBalancing;
+    }
+
+    public ServerSettings setReactorBalancing(ReactorBalancing reactorBalancing) {
+        Precondition.notNull(reactorBalancing, "reactorBalancing is null");
+        this.reactorBalancing = reactorBalancing;
+        return this;
+    }
+
+    public int getMaxFramesPerWrite() {
+        return maxFramesPerWrite;
+    }
+
+    /**
+     * Сколько максимум фреймов из очереди сессии отправлять одним вызовом write() (gathering write).
+     */
+    public ServerSettings setMaxFramesPerWrite(int maxFramesPerWrite) {
+        Precondition.expected(maxFramesPerWrite > 0, "maxFramesPerWrite must be > 0");
+        this.maxFramesPerWrite = maxFramesPerWrite;
+        return this;
+    }
+
+    public int getMaxBytesPerWrite() {
+        return maxBytesPerWrite;
+    }
+
+    /**
+     * Сколько максимум байт набирать из очереди сессии для одного вызова write().
+     * Первый фрейм берется всегда, даже если он больше.
+     */
+    public ServerSettings setMaxBytesPerWrite(int maxBytesPerWrite) {
+        Precondition.expected(maxBytesPerWrite > 0, "maxBytesPerWrite must be > 0");
+        this.maxBytesPerWrite = maxBytesPerWrite;
+        return this;
+    }
+
+    public long getBufferPoolMaxBytes() {
+        return bufferPoolMaxBytes;
+    }
+
+    /**
+     * Сколько максимум байт свободных буферов держать в пуле (см. BufferPool).
+     * 0 - не держать ничего (буферы всегда аллоцируются заново).
+     */
+    public ServerSettings setBufferPoolMaxBytes(long bufferPoolMaxBytes) {
+        Precondition.expected(bufferPoolMaxBytes >= 0, "bufferPoolMaxBytes must be >= 0");
+        this.bufferPoolMaxBytes = bufferPoolMaxBytes;
+        return this;
+    }
+
+    public int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    /**
+     * Размер общего буфера чтения R/W потока (один на поток, а не на сессию).
+     * Он же ограничивает размер HTTP-заголовка handshake.
+     */
+    public ServerSettings setReadBufferSize(int readBufferSize) {
+        Precondition.expected(readBufferSize >= BufferPool.MIN_BUFFER_SIZE
+                        && readBufferSize <= BufferPool.MAX_BUFFER_SIZE,
+                "readBufferSize must be in (" + BufferPool.MIN_BUFFER_SIZE + ".." + BufferPool.MAX_BUFFER_SIZE + ")");
+        this.readBufferSize = readBufferSize;
+        return this;
+    }
+
+    public int getMaxMessagesPerRead() {
+        return maxMessagesPerRead;
+    }
+
+    /**
+     * Сколько максимум сообщений одной сессии разбирать за один проход R/W потока.
+     * Остальные разбираются на следующей итерации, чтобы одна сессия не задерживала другие.
+     */
+    public ServerSettings setMaxMessagesPerRead(int maxMessagesPerRead) {
+        Precondition.expected(maxMessagesPerRead > 0, "maxMessagesPerRead must be > 0");
+        this.maxMessagesPerRead = maxMessagesPerRead;
+        return this;
+    }
+
+    public int getProcessorQueueCapacity() {
+        return processorQueueCapacity;
+    }
+
+    /**
+     * Емкость очереди сообщений на обработку. Сообщения сверх нее отклоняются (IMessageHandler.onReject()).
+     */
+    public ServerSettings setProcessorQueueCapacity(int processorQueueCapacity) {
+        Precondition.expected(processorQueueCapacity > 0, "processorQueueCapacity must be > 0");
+        this.processorQueueCapacity = processorQueueCapacity;
+        return this;
+    }
+
+    public int getReadPauseQueueSize() {
+        return readPauseQueueSize;
+    }
+
+    public int getReadResumeQueueSize() {
+        return readResumeQueueSize;
+    }
+
+    /**
+     * Пороги для притормаживания чтения (backpressure).
+     * Когда очередь сообщений на обработку дорастает до pauseQueueSize, сервер перестает читать
+     * из сессий, приславших сообщения (снимает OP_READ, клиентов тормозит TCP flow control).
+     * Чтение возобновляется, когда очередь разгребется до resumeQueueSize.
+     * pauseQueueSize не должен превышать емкость очереди (см. setProcessorQueueCapacity()).
+     */
+    public ServerSettings setReadPauseWatermarks(int pauseQueueSize, int resumeQueueSize) {
+        Precondition.expected(pauseQueueSize > 0, "pauseQueueSize must be > 0");
+        Precondition.expected(resumeQueueSize >= 0 && resumeQueueSize < pauseQueueSize,
+                "resumeQueueSize must be in (0..pauseQueueSize - 1)");
+        this.readPauseQueueSize = pauseQueueSize;
+        this.readResumeQueueSize = resumeQueueSize;
+        return this;
+    }
+
+    public boolean isOrderedProcessing() {
+        return orderedProcessing;
+    }
+
+    /**
+     * true - сообщения одной сессии обрабатываются строго по порядку и никогда параллельно
+     * (разные сессии - по-прежнему параллельно). Обработчику не нужны свои локи на сессию.
+     * false - любое сообщение уходит любому свободному воркеру.
+     */
+    public ServerSettings setOrderedProcessing(boolean orderedProcessing) {
+        this.orderedProcessing = orderedProcessing;
+        return this;
+    }
+
+    public ProcessorType getProcessorType() {
+        return processorType;
+    }
+
+    public ServerSettings setProcessorType(ProcessorType processorType) {
+        Precondition.notNull(processorType, "processorType is null");
+        this.processorType = processorType;
+        return this;
+    }
+
+    public int getMaxInFlightMessages() {
+        return maxInFlightMessages;
+    }
+
+    /**
+     * Сколько максимум сообщений обрабатывается одновременно в режиме VIRTUAL_THREADS
+     * (в режиме THREAD_POOL это кол-во воркеров, см. setWorkerThreadsCount()).
+     */
+    public ServerSettings setMaxInFlightMessages(int maxInFlightMessages) {
+        Precondition.expected(maxInFlightMessages > 0, "maxInFlightMessages must be > 0");
+        this.maxInFlightMessages = maxInFlightMessages;
+        return this;
+    }
+
+    public TaskQueueType getTaskQueueType() {
+        return taskQueueType;
+    }
+
+    public ServerSettings setTaskQueueType(TaskQueueType taskQueueType) {
+        Precondition.notNull(taskQueueType, "taskQueueType is null");
+        this.taskQueueType = taskQueueType;
+        return this;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Сколько максимум сообщений отдавать за раз обработчику IBatchMessageHandler.
+     */
+    public ServerSettings setMaxBatchSize(int maxBatchSize) {
+        Precondition.expected(maxBatchSize > 0, "maxBatchSize must be > 0");
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    public long getMaxBatchDelayMicros() {
+        return maxBatchDelayMicros;
+    }
+
+    /**
+     * Сколько максимум ждать (от первого сообщения) добора неполной пачки для IBatchMessageHandler.
+     * 0 - не ждать, отдавать то, что уже есть в очереди.
+     */
+    public ServerSettings setMaxBatchDelayMicros(long maxBatchDelayMicros) {
+        Precondition.expected(maxBatchDelayMicros >= 0, "maxBatchDelayMicros must be >= 0");
+        this.maxBatchDelayMicros = maxBatchDelayMicros;
+        return this;
+    }
+}
@@ -17,13 +17,21 @@ public abstract class ServerThread {
 
     protected abstract void onThreadError(Exception e);
 
+    // Вызывается из потока, запросившего остановку (например, чтобы разбудить заблокированный поток).
+    protected void onStopRequested() {
+    }
+
+    protected String getThreadName() {
+        return getClass().getSimpleName();
+    }
+
 
     void start() {
         if (!running.compareAndSet(false, true)) {
             throw new IllegalStateException("Thread already running");
         }
         try {
-            new Thread(this::doInThread).start();
+            new Thread(this::doInThread, getThreadName()).start();
         } catch (IllegalThreadStateException e) {
             running.set(false);
             throw e;
@@ -32,6 +40,7 @@ public abstract class ServerThread {
 
     void stop() {
         if (stopRequested.compareAndSet(false, true)) {
+            onStopRequested();
             while (running.get()) {
                 sensitiveSleep(10);
             }
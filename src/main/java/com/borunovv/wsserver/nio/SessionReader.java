@@ -1,5 +1,8 @@
 package com.borunovv.wsserver.nio;
 
+import com.borunovv.contract.Precondition;
+import com.borunovv.wsserver.protocol.websocket.WSMessage;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
@@ -8,38 +11,46 @@ import java.nio.channels.SocketChannel;
 /**
  * Хелпер по асинхронному чтению из сокета.
  * Нарезает трафик на пакеты.
+ * Читает в общий буфер R/W потока. Свой буфер (из пула) сессия держит только
+ * для неразобранного хвоста, пока он не будет дочитан.
  */
 public class SessionReader extends SessionIOBase {
 
-    private volatile boolean readingNow = false;
+    // Неразобранный хвост с прошлого чтения (незаконченный заголовок фрейма / handshake и т.п.).
+    private ByteBuffer pendingData;
+    // Сколько максимум сообщений отдавать за один проход, чтобы не задерживать остальные сессии потока.
+    private final int maxMessagesPerRead;
 
-    SessionReader(RWSession session) {
+    SessionReader(RWSession session, int maxMessagesPerRead) {
         super(session);
+        Precondition.expected(maxMessagesPerRead > 0, "maxMessagesPerRead must be > 0");
+        this.maxMessagesPerRead = maxMessagesPerRead;
     }
 
     void onCanRead(SelectionKey key, SocketChannel client) throws IOException {
+        // Очередь обработчика уже полна - не читаем, пусть клиента тормозит TCP.
+        if (session.pauseReadingIfOverloaded()) {
+            return;
+        }
         doRead(key, client);
     }
 
-    private boolean isReadingNow() {
-        return readingNow;
-    }
-
     /**
-     * Читает очередной кусочек данных из клиента.
+     * Читает очередной кусочек данных из клиента (или только разбирает хвост, если client == null).
+     * Протокол разбирает данные инкрементально (куски payload сразу копируются в собираемое сообщение),
+     * поэтому после разбора остается только хвост после целого сообщения или незаконченный заголовок.
      */
     private void doRead(SelectionKey key, SocketChannel client) throws IOException {
-        ByteBuffer buffer = getWorkBuffer();
-        boolean bufferWasEmpty = (buffer.position() == 0);
+        ByteBuffer buffer = session.getSharedReadBuffer();
+        buffer.clear();
+        restorePendingData(buffer);
 
-        if (bufferWasEmpty && client == null) {
-            return;
-        }
-
-        int len = 0;
         if (client != null) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Too big message header. Max allowed size: " + buffer.capacity() + " bytes");
+            }
             try {
-                len = client.read(buffer);
+                int len = client.read(buffer);
                 if (len == -1) {
                     throw new ClientClosedException("Client closed (can't read)");
                 }
@@ -48,42 +59,48 @@ public class SessionReader extends SessionIOBase {
             }
         }
 
-        boolean somethingRed = (len > 0);
-        if (bufferWasEmpty && somethingRed) {
-            readingNow = true;
-            session.onPacketStart(key);
+        buffer.flip(); // prepare to read.
+        // Отдаем все целые сообщения из буфера (но не больше maxMessagesPerRead).
+        int messagesCount = 0;
+        while (buffer.hasRemaining() && messagesCount < maxMessagesPerRead && !session.isReadPaused()) {
+            WSMessage msg = session.getProtocol().decode(session, buffer);
+            if (msg == null) {
+                break;
+            }
+            messagesCount++;
+            session.onPacketFinish(key, msg);
         }
 
-        if (somethingRed || (!bufferWasEmpty && client == null)) {
-            int correctPacketLen = getCorrectPacketLength(buffer);
-
-            if (correctPacketLen > 0) { // Критерий наличия в рабочем буфере хотябы одного целого пакета.
-                buffer.flip();  // prepare to read.
-                session.onPacketFinish(key, buffer.array(), correctPacketLen);
-                if (buffer.limit() == correctPacketLen) {
-                    // В буфере кроме только что прочитанного пакета больше ничего нет
-                    // (т.е. никаких кусков от следующего пакета)
-                    // Можно вернуть размер буфера на дефолтный, если он больше.
-                    buffer = resetWorkBufferSizeIfNeed();
-                    buffer.clear();
-                    readingNow = false;
-                } else {
-                    // В буфере есть еще куски от нового пакета(ов), т.е. мы не можем их потерять.
-                    // Двигаем позицию к началу нового куска.
-                    buffer.position(correctPacketLen);
-                    // Смещаем новый кусок в начало буфера
-                    // (чтобы прочитанный пакет больше не занимал место).
-                    buffer.compact();
-
-                    readingNow = true;
-                    session.onPacketStart(key);
-                }
+        if (buffer.hasRemaining()) {
+            savePendingData(buffer);
+            if (messagesCount == maxMessagesPerRead && !session.isReadPaused()) {
+                // Уперлись в лимит, а в хвосте могут быть еще целые сообщения.
+                // Разберем их на следующей итерации R/W потока, дав поработать остальным сессиям.
+                session.scheduleUpdate();
             }
         }
+    }
 
-        if (buffer.remaining() == 0) {
-            // Не хватает буфера, надо переаллоцировать
-            enlargeWorkBuffer(buffer.capacity() * 2);
+    private void restorePendingData(ByteBuffer buffer) {
+        if (pendingData != null) {
+            pendingData.flip();
+            buffer.put(pendingData);
+            releaseBuffers();
+        }
+    }
+
+    private void savePendingData(ByteBuffer buffer) {
+        pendingData = getBufferPool().acquire(buffer.remaining());
+        pendingData.put(buffer);
+    }
+
+    /**
+     * Возвращает буферы сессии в пул. Вызывается при закрытии сессии.
+     */
+    void releaseBuffers() {
+        if (pendingData != null) {
+            getBufferPool().release(pendingData);
+            pendingData = null;
         }
     }
 
@@ -93,20 +110,12 @@ public class SessionReader extends SessionIOBase {
     }
 
     /**
-     * Проверяет, есть ли в буфере уже цельный пакет, и если да, то вернет его длину.
-     * Иначе вернет 0.
+     * Вызывается R/W потоком при обновлении сессии.
+     * Дочитывает сообщения, оставшиеся в хвосте с прошлого раза (если чтение не приостановлено).
      */
-    private int getCorrectPacketLength(ByteBuffer buffer) {
-        return session.getProtocol().checkPacket(buffer);
-    }
-
-    void onHeartBit(SelectionKey key) {
-        if (isReadingNow()) {
-            try {
-                doRead(key, null);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+    void onUpdate(SelectionKey key) throws IOException {
+        if (pendingData != null && !session.pauseReadingIfOverloaded()) {
+            doRead(key, null);
         }
     }
 }
@@ -6,32 +6,50 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SessionWriter extends SessionIOBase {
 
     private static final int MAX_QUEUE_SIZE = 3000;
-    private enum State {Ready, Writing}
 
-    private State state = State.Ready;
     private final ConcurrentLinkedQueue<BufferWithCustomData> queue = new ConcurrentLinkedQueue<>();
+    // Размер очереди (ConcurrentLinkedQueue.size() - это O(n)).
+    private final AtomicInteger queueSize = new AtomicInteger(0);
     private volatile int maxQueueSize = 0;
 
-    public SessionWriter(RWSession session) {
+    // Бюджет одного вызова write(): сколько максимум фреймов и байт набирать из очереди.
+    private final int maxFramesPerWrite;
+    private final int maxBytesPerWrite;
+    // Переиспользуемый массив буферов для gathering write.
+    private ByteBuffer[] gatherBuffers = new ByteBuffer[16];
+
+    // Для статистики (пишется только R/W потоком).
+    private volatile long writeCallsCount = 0;
+    private volatile long framesSentCount = 0;
+    private volatile int lastFramesPerWriteCall = 0;
+
+    public SessionWriter(RWSession session, int maxFramesPerWrite, int maxBytesPerWrite) {
         super(session);
+        Precondition.expected(maxFramesPerWrite > 0, "maxFramesPerWrite must be > 0");
+        Precondition.expected(maxBytesPerWrite > 0, "maxBytesPerWrite must be > 0");
+        this.maxFramesPerWrite = maxFramesPerWrite;
+        this.maxBytesPerWrite = maxBytesPerWrite;
     }
 
     /**
      * Вызывается асинхронно.
      * Вернет true, если удачно поставлен в очередь.
      */
-    public boolean queuePacket(ByteBuffer packet, Object customData) {
+    public boolean queuePacket(ByteBuffer[] packet, Object customData) {
         // Тут неатомарная проверка, но не страшно если очередь чуть переполнится
         // (максимум на кол-во элементов, равному кол-ву конкурирующих потоков).
         // Зато не надо дорого лочить.
         if (canQueuePacket()) {
             queue.add(new BufferWithCustomData(packet, customData));
-            maxQueueSize = Math.max(maxQueueSize, queue.size());
+            maxQueueSize = Math.max(maxQueueSize, queueSize.incrementAndGet());
             return true;
         } else {
             return false;
@@ -43,53 +61,33 @@ public class SessionWriter extends SessionIOBase {
      * Теоритически нас могут опередить из другого потока.
      */
     public boolean canQueuePacket() {
-        return queue.size() < MAX_QUEUE_SIZE;
+        return queueSize.get() < MAX_QUEUE_SIZE;
     }
 
     /**
      * Вызывается серваком при возможности писать в клиент.
+     * Набирает из очереди несколько пакетов (в пределах бюджета) и пишет их
+     * в сокет одним вызовом write(ByteBuffer[]), без копирования в рабочий буфер.
      */
     public void onCanWrite(SelectionKey key, SocketChannel client) throws IOException {
         try {
-            switch (state) {
-                case Ready:
-                    BufferWithCustomData nextPacket = queue.peek();
-
-                    if (nextPacket != null) {
-                        Precondition.expected(nextPacket.buffer != null, "nextPacket.getBuffer() is null!");
-                        Precondition.expected(nextPacket.buffer.hasArray(), "nextPacket.getBuffer().hasArray == false!");
-
-                        // Есть очередной пакет данных для записи, копируем в рабочий буфер..
-                        putAndPrepareForRead(nextPacket.buffer.array(), nextPacket.buffer.limit());
-                        // И сразу же пытаемся писать.
-                        if (doWrite(key, client)) {
-                            // Целиком все записать не получилось - меняем состояние.
-                            state = State.Writing;
-                        } else {
-                            // Пакет отправлен, удаляем его из очереди.
-                            queue.poll();
-                        }
-                    }
-                    break;
-                case Writing:
-                    if (!doWrite(key, client)) {
-                        // Пакет отправлен, удаляем его из очереди.
-                        queue.poll();
-                        state = State.Ready;
-                    }
-                    break;
+            int buffersCount = gatherPackets();
+            if (buffersCount > 0) {
+                long bytesWritten = client.write(gatherBuffers, 0, buffersCount);
+                Arrays.fill(gatherBuffers, 0, buffersCount, null);
+                onWriteCall(removeSentPackets(key), bytesWritten);
             }
         } catch (Exception e) {
             onPacketSendFailed(key, e);
             // Пакет не отправлен, но все-равно удаляем его из очереди.
-            queue.poll();
+            pollPacket();
             throw new IOException("Failed to write data into channel.", e);
         }
     }
 
     // Для статистики и для расчета загруженности клиента (для тротлинга / замедления).
     public int getMsgQueueSize() {
-        return queue.size();
+        return queueSize.get();
     }
     public int getMaxMsgQueueSize() {
         return maxQueueSize;
@@ -110,36 +108,85 @@ public class SessionWriter extends SessionIOBase {
         return percent;
     }
 
+    // Сколько всего было вызовов write() и сколько фреймов ими отправлено.
+    public long getWriteCallsCount() {
+        return writeCallsCount;
+    }
+
+    public long getFramesSentCount() {
+        return framesSentCount;
+    }
+
+    // Сколько фреймов отправил последний вызов write().
+    public int getLastFramesPerWriteCall() {
+        return lastFramesPerWriteCall;
+    }
+
     boolean isWritingNow() {
-        return state == State.Writing;
+        BufferWithCustomData currentPacket = queue.peek();
+        return currentPacket != null && currentPacket.isStarted();
     }
 
     /**
-     * Вернет true если надо продолжать запись.
+     * Складывает в gatherBuffers неотправленные буферы пакетов из головы очереди
+     * (не больше maxFramesPerWrite пакетов и maxBytesPerWrite байт, но минимум один пакет).
+     * Вернет кол-во буферов.
      */
-    private boolean doWrite(SelectionKey key, SocketChannel client) throws IOException {
-        ByteBuffer buffer = getWorkBuffer();
-        Precondition.expected(buffer != null, "workBuffer is null");
-
-        if (buffer.remaining() > 0) {
-            int written = client.write(buffer);
-            if (!buffer.hasRemaining()) {
-                int packetSize = buffer.position();
-                buffer = resetWorkBufferSizeIfNeed();
-                buffer.clear();
-                onPacketSent(key, packetSize);
-                return false;
+    private int gatherPackets() {
+        int buffersCount = 0;
+        int framesCount = 0;
+        long bytesCount = 0;
+
+        Iterator<BufferWithCustomData> iterator = queue.iterator();
+        while (iterator.hasNext() && framesCount < maxFramesPerWrite) {
+            BufferWithCustomData packet = iterator.next();
+            if (framesCount > 0 && bytesCount + packet.getRemaining() > maxBytesPerWrite) {
+                break;
+            }
+
+            for (int i = packet.firstNotSentIndex; i < packet.buffers.length; ++i) {
+                if (buffersCount == gatherBuffers.length) {
+                    gatherBuffers = Arrays.copyOf(gatherBuffers, buffersCount * 2);
+                }
+                gatherBuffers[buffersCount++] = packet.buffers[i];
             }
+            bytesCount += packet.getRemaining();
+            framesCount++;
+        }
+
+        return buffersCount;
+    }
+
+    /**
+     * Удаляет из головы очереди полностью отправленные пакеты. Вернет их кол-во.
+     */
+    private int removeSentPackets(SelectionKey key) {
+        int sentCount = 0;
+        BufferWithCustomData packet;
+        while ((packet = queue.peek()) != null && !packet.skipSent()) {
+            // Пакет отправлен, удаляем его из очереди.
+            pollPacket();
+            sentCount++;
+            onPacketSent(key, packet);
         }
+        return sentCount;
+    }
 
-        return buffer.hasRemaining();
+    private void pollPacket() {
+        if (queue.poll() != null) {
+            queueSize.decrementAndGet();
+        }
     }
 
-    private void onPacketSent(SelectionKey key, int packetSize) {
-        BufferWithCustomData justSentPacket = queue.peek();
-        Precondition.expected(justSentPacket != null, "Expecting non null packet..hmm..(" + session.getClientRemoteAddress() + ")");
+    private void onWriteCall(int framesSent, long bytesWritten) {
+        writeCallsCount++;
+        framesSentCount += framesSent;
+        lastFramesPerWriteCall = framesSent;
+        session.onWriteCall(framesSent, bytesWritten);
+    }
 
-        session.onPacketSent(key, justSentPacket.customData, packetSize);
+    private void onPacketSent(SelectionKey key, BufferWithCustomData justSentPacket) {
+        session.onPacketSent(key, justSentPacket.customData, justSentPacket.size);
     }
 
     private void onPacketSendFailed(SelectionKey key, Throwable cause) {
@@ -153,34 +200,59 @@ public class SessionWriter extends SessionIOBase {
     }
 
     /**
-     * Вызывается серваком часто (heart bitting).
+     * Вызывается серваком после записи и при обновлении сессии.
      */
     @Override
     public int getSelectionKeyFlags() {
-        switch (state) {
-            case Ready:
-                // Мы ничего не пишем ..
-                return hasSomethingToWrite() ?
-                        SelectionKey.OP_WRITE : // ..но в очереди что-то есть! Начинаем писать!
-                        0; // ..а если очередь пуста...ждем дальше.
-            case Writing:
-                return SelectionKey.OP_WRITE;
-        }
-        return 0;
+        return hasSomethingToWrite() ?
+                SelectionKey.OP_WRITE : // В очереди что-то есть! Пишем!
+                0; // Очередь пуста...ждем дальше.
     }
 
     private boolean hasSomethingToWrite() {
-        return !queue.isEmpty(); // nextPacketToSend.get() != null;
+        return !queue.isEmpty();
     }
 
 
     private class BufferWithCustomData {
-        final ByteBuffer buffer;
+        final ByteBuffer[] buffers;
         final Object customData;
+        final int size;
+        int firstNotSentIndex = 0;
 
-        BufferWithCustomData(ByteBuffer buffer, Object customData) {
-            this.buffer = buffer;
+        BufferWithCustomData(ByteBuffer[] buffers, Object customData) {
+            Precondition.expected(buffers != null && buffers.length > 0, "buffers must not be empty");
+            this.buffers = buffers;
             this.customData = customData;
+
+            int total = 0;
+            for (ByteBuffer buffer : buffers) {
+                total += buffer.remaining();
+            }
+            this.size = total;
+        }
+
+        boolean isStarted() {
+            return firstNotSentIndex > 0 || buffers[0].position() > 0;
+        }
+
+        long getRemaining() {
+            long remaining = 0;
+            for (int i = firstNotSentIndex; i < buffers.length; ++i) {
+                remaining += buffers[i].remaining();
+            }
+            return remaining;
+        }
+
+        /**
+         * Пропускает полностью отправленные буферы.
+         * Вернет true, если еще что-то осталось.
+         */
+        boolean skipSent() {
+            while (firstNotSentIndex < buffers.length && !buffers[firstNotSentIndex].hasRemaining()) {
+                firstNotSentIndex++;
+            }
+            return firstNotSentIndex < buffers.length;
         }
     }
 }
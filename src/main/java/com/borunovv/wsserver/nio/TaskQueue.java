@@ -0,0 +1,24 @@
+package com.borunovv.wsserver.nio;
+
+/**
+ * Ограниченная очередь сообщений обработчика (см. AbstractMessageProcessor.setTaskQueue()).
+ * Много писателей, много читателей.
+ */
+public interface TaskQueue<E> {
+
+    /**
+     * Вернет false, если очередь заполнена.
+     */
+    boolean offer(E element);
+
+    /**
+     * Вернет null, если очередь пуста.
+     */
+    E poll();
+
+    boolean isEmpty();
+
+    int size();
+
+    int capacity();
+}
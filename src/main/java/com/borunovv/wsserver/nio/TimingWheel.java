@@ -0,0 +1,250 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.contract.Precondition;
+import com.borunovv.log.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Хешированное колесо таймеров (hashed timing wheel) R/W потока.
+ * Время делится на тики по tickMs, таймер кладется в ячейку (тик срабатывания % кол-во ячеек).
+ * Постановка и отмена - O(1), при продвижении времени просматриваются только ячейки прошедших тиков
+ * (а в них - таймеры, чей оборот колеса еще не наступил, остаются на месте).
+ * Точность срабатывания - один тик.
+ * Не потокобезопасно: все методы (кроме Timeout.cancel()) вызываются только из потока-владельца.
+ */
+public final class TimingWheel {
+
+    private final long tickMs;
+    private final Timeout[] slots;
+    private final int mask;
+    private final long startMs;
+    // Часы колеса, мс (в тестах - подменяемые).
+    private final LongSupplier clock;
+    private final Thread ownerThread;
+    // Последний обработанный тик.
+    private long currentTick;
+    // Переиспользуемый список сработавших таймеров (задачи запускаются после выемки из ячеек).
+    private final List<Timeout> expired = new ArrayList<>();
+
+    // Для статистики (пишется только потоком-владельцем).
+    private volatile int timeoutsCount = 0;
+    private volatile long firedCount = 0;
+
+    /**
+     * wheelSize - кол-во ячеек (степень двойки).
+     */
+    TimingWheel(long tickMs, int wheelSize) {
+        this(tickMs, wheelSize, TimingWheel::nowMs);
+    }
+
+    /**
+     * clock - свои часы, мс. Таймеры с ними согласованы, только если созданы через schedule()
+     * (newTimeout() всегда считает от nowMs()).
+     */
+    TimingWheel(long tickMs, int wheelSize, LongSupplier clock) {
+        Precondition.expected(tickMs > 0, "tickMs must be > 0");
+        Precondition.expected(wheelSize > 0 && Integer.bitCount(wheelSize) == 1, "wheelSize must be a power of 2");
+        Precondition.expected(clock != null, "clock is null");
+        this.tickMs = tickMs;
+        this.slots = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+        this.clock = clock;
+        this.startMs = clock.getAsLong();
+        this.ownerThread = Thread.currentThread();
+    }
+
+    /**
+     * Монотонные часы колеса, мс. Можно вызывать из любого потока.
+     */
+    static long nowMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Таймер, срабатывающий через delayMs от текущего момента. В колесо его добавляет add().
+     * Можно вызывать из любого потока.
+     */
+    static Timeout newTimeout(long delayMs, Runnable task) {
+        return newTimeout(nowMs(), delayMs, task);
+    }
+
+    private static Timeout newTimeout(long nowMs, long delayMs, Runnable task) {
+        Precondition.expected(delayMs >= 0, "delayMs must be >= 0");
+        Precondition.expected(task != null, "task is null");
+        return new Timeout(nowMs + delayMs, task);
+    }
+
+    Timeout schedule(long delayMs, Runnable task) {
+        Timeout timeout = newTimeout(clock.getAsLong(), delayMs, task);
+        add(timeout);
+        return timeout;
+    }
+
+    void add(Timeout timeout) {
+        Precondition.expected(timeout.wheel == null, "Timeout is already scheduled");
+        if (timeout.cancelled) {
+            return;
+        }
+        timeout.wheel = this;
+        // Срабатывает не раньше срока, и не раньше следующего тика.
+        timeout.deadlineTick = Math.max(currentTick + 1, (timeout.deadlineMs - startMs + tickMs - 1) / tickMs);
+        link(timeout);
+    }
+
+    int getTimeoutsCount() {
+        return timeoutsCount;
+    }
+
+    long getFiredCount() {
+        return firedCount;
+    }
+
+    /**
+     * Сколько ждать (мс) до ближайшего тика с таймерами. -1, если таймеров нет.
+     * Смотрит не дальше одного оборота колеса: таймер из занятой ячейки может оказаться
+     * на следующих оборотах - тогда проснемся раньше, чем нужно, и только.
+     */
+    long getDelayToNextTickMs() {
+        if (timeoutsCount == 0) {
+            return -1;
+        }
+        long tick = currentTick + 1;
+        for (int i = 0; i < slots.length && slots[(int) (tick & mask)] == null; ++i) {
+            tick++;
+        }
+        return Math.max(0, startMs + tick * tickMs - clock.getAsLong());
+    }
+
+    /**
+     * Продвигает время до текущего момента и запускает сработавшие таймеры.
+     */
+    void advance() {
+        long targetTick = (clock.getAsLong() - startMs) / tickMs;
+        if (targetTick <= currentTick) {
+            return;
+        }
+        long fromTick = currentTick;
+        currentTick = targetTick;
+        if (timeoutsCount == 0) {
+            return;
+        }
+
+        // Если отстали больше, чем на оборот, достаточно один раз пройти все ячейки.
+        long ticks = Math.min(targetTick - fromTick, slots.length);
+        for (long tick = fromTick + 1; tick <= fromTick + ticks; ++tick) {
+            collectExpired((int) (tick & mask), targetTick);
+        }
+
+        try {
+            for (Timeout timeout : expired) {
+                runTask(timeout);
+            }
+        } finally {
+            expired.clear();
+        }
+    }
+
+    private void collectExpired(int slot, long targetTick) {
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled) {
+                unlink(timeout);
+            } else if (timeout.deadlineTick <= targetTick) {
+                unlink(timeout);
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private void runTask(Timeout timeout) {
+        // Мог быть отменен задачей, сработавшей перед ним.
+        if (timeout.cancelled) {
+            return;
+        }
+        timeout.expired = true;
+        firedCount++;
+        try {
+            timeout.task.run();
+        } catch (Exception e) {
+            Log.error("Error in scheduled task", e);
+        }
+    }
+
+    private void link(Timeout timeout) {
+        int slot = (int) (timeout.deadlineTick & mask);
+        Timeout head = slots[slot];
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        slots[slot] = timeout;
+        timeout.linked = true;
+        timeoutsCount++;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (!timeout.linked) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[(int) (timeout.deadlineTick & mask)] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.linked = false;
+        timeoutsCount--;
+    }
+
+    /**
+     * Запланированная задача. Отменить можно из любого потока.
+     */
+    public static final class Timeout {
+        private final long deadlineMs;
+        private final Runnable task;
+        private volatile boolean cancelled;
+        private volatile boolean expired;
+        // Только для потока колеса.
+        private TimingWheel wheel;
+        private long deadlineTick;
+        private boolean linked;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(long deadlineMs, Runnable task) {
+            this.deadlineMs = deadlineMs;
+            this.task = task;
+        }
+
+        /**
+         * Отменяет задачу, если она еще не запущена.
+         * Из потока колеса таймер сразу убирается из него, из других - при проходе его ячейки.
+         */
+        public void cancel() {
+            cancelled = true;
+            TimingWheel current = wheel;
+            if (current != null && Thread.currentThread() == current.ownerThread) {
+                current.unlink(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        // true, если задача уже запущена.
+        public boolean isExpired() {
+            return expired;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.borunovv.wsserver.nio;
+
+import com.borunovv.contract.Precondition;
+import com.borunovv.log.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Обработчик сообщений, запускающий каждое сообщение (в упорядоченном режиме - каждую пачку
+ * сообщений почтового ящика) в отдельном виртуальном потоке.
+ * Подходит для обработчиков, которые блокируются (ходят во внешние сервисы и т.п.):
+ * тысячи ждущих обработчиков не занимают потоков ОС.
+ * Кол-во одновременно обрабатываемых сообщений ограничено maxConcurrency, остальные ждут в очереди.
+ * Виртуальные потоки есть начиная с Java 21. На более старой JVM используется обычный
+ * растущий пул потоков (с тем же ограничением maxConcurrency).
+ */
+public class VirtualThreadMessageProcessor<T> extends AbstractMessageProcessor<T> {
+
+    private final int maxConcurrency;
+    private final Semaphore permits;
+    private volatile ExecutorService executor;
+
+
+    public VirtualThreadMessageProcessor(int maxConcurrency,
+                                         int taskQueueLimit,
+                                         long queueAddTaskWaitTimeoutMs,
+                                         IMessageHandler<T> messageHandler) {
+        super(taskQueueLimit, queueAddTaskWaitTimeoutMs, messageHandler);
+        Precondition.expected(maxConcurrency > 0, "maxConcurrency must be > 0");
+
+        this.maxConcurrency = maxConcurrency;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    @Override
+    protected boolean isStarted() {
+        return executor != null;
+    }
+
+    @Override
+    public void start() {
+        stop();
+        executor = createExecutor();
+        onStarted();
+        // В очереди могло что-то остаться с прошлого запуска.
+        dispatch();
+    }
+
+    @Override
+    public void stop() {
+        ExecutorService current = executor;
+        if (current != null) {
+            stopRequested = true;
+            current.shutdown();
+            while (!current.isTerminated()) {
+                sleep(10);
+            }
+            stopRequested = false;
+            executor = null;
+
+            onStopped();
+        }
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    protected void onTaskReady() {
+        dispatch();
+    }
+
+    /**
+     * Запускает обработку готовых сообщений, пока есть свободные разрешения.
+     */
+    private void dispatch() {
+        ExecutorService current = executor;
+        while (current != null && !stopRequested && hasReadyTasks() && permits.tryAcquire()) {
+            try {
+                current.execute(this::runTask);
+            } catch (RejectedExecutionException e) {
+                // Останавливаемся.
+                permits.release();
+                return;
+            }
+        }
+    }
+
+    private void runTask() {
+        try {
+            processNext();
+        } finally {
+            permits.release();
+        }
+        // Освободили разрешение - кто-то мог не запуститься, пока мы работали.
+        dispatch();
+    }
+
+    private ExecutorService createExecutor() {
+        try {
+            // Executors.newVirtualThreadPerTaskExecutor() появился в Java 21, а собираемся мы под Java 8.
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads are not supported by this JVM ("
+                    + System.getProperty("java.version") + "). Falling back to platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
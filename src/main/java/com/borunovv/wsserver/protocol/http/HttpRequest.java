@@ -5,224 +5,167 @@ import com.borunovv.util.StringUtils;
 import com.borunovv.util.UrlUtils;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * HTTP запрос. Хранит сырые байты и смещения, разобранные HttpRequestHeadParser.
+ * Строки (метод, URI, значения заголовков) создаются только при обращении к ним.
+ */
 public class HttpRequest {
 
-    private static final Pattern URI_PATTERN = Pattern.compile("^(\\S+)\\s+(\\S+)\\s+.*$");
+    private final byte[] data;
+    private final int methodStart;
+    private final int methodEnd;
+    private final int uriStart;
+    private final int uriEnd;
+    // По 4 смещения на заголовок (см. HttpRequestHeadParser).
+    private final int[] headerOffsets;
+    private final int headersCount;
+    private final int contentOffset;
+    private final int contentLength;
 
-    private String rawHeader = "";
-    private String method = "";
-    private String uri = "";
-    private Map<String, List<String>> headers = new HashMap<String, List<String>>();
-    private byte[] content = new byte[0];
-    private Map<String, String> uriParams = new HashMap<String, String>();
-    private String uriPath = "/";
+    private String method;
+    private String uri;
+    private String uriPath;
+    private Map<String, String> uriParams;
+    private byte[] content;
 
 
     public HttpRequest(byte[] data, int length) throws NonCompleteHttpRequestException {
-        parse(data, length);
+        this(Arrays.copyOf(data, length), parseHead(data, length));
+    }
+
+    HttpRequest(byte[] data, HttpRequestHeadParser head) {
+        this.data = data;
+        this.methodStart = head.methodStart;
+        this.methodEnd = head.methodEnd;
+        this.uriStart = head.uriStart;
+        this.uriEnd = head.uriEnd;
+        this.headerOffsets = Arrays.copyOf(head.headerOffsets, head.headersCount * 4);
+        this.headersCount = head.headersCount;
+        this.contentOffset = head.contentOffset;
+        this.contentLength = head.contentLength;
+    }
+
+    private static HttpRequestHeadParser parseHead(byte[] data, int length) throws NonCompleteHttpRequestException {
+        Precondition.expected(data != null && data.length >= length, "data must not be null");
+
+        HttpRequestHeadParser head = new HttpRequestHeadParser();
+        if (head.parse(data, length) < 0) {
+            throw new NonCompleteHttpRequestException("Not all request in buffer.");
+        }
+        return head;
     }
 
     public String getMethod() {
+        if (method == null) {
+            method = StringUtils.toUtf8String(data, methodStart, methodEnd - methodStart);
+        }
         return method;
     }
 
     public String getUri() {
+        if (uri == null) {
+            uri = StringUtils.toUtf8String(data, uriStart, uriEnd - uriStart);
+        }
         return uri;
     }
 
     public byte[] getContent() {
+        if (content == null) {
+            content = Arrays.copyOfRange(data, contentOffset, contentOffset + contentLength);
+        }
         return content;
     }
 
     public List<String> getHeader(String headerName) {
-        return (headerName != null && headers.containsKey(headerName.toLowerCase())) ?
-                headers.get(headerName.toLowerCase()) :
-                new ArrayList<String>(0);
+        List<String> result = new ArrayList<String>(1);
+        if (headerName != null) {
+            byte[] name = toLowerCaseAscii(headerName);
+            for (int i = 0; i < headersCount; ++i) {
+                if (isHeaderName(i, name)) {
+                    result.add(getHeaderValue(i));
+                }
+            }
+        }
+        return result;
     }
 
     public String getSingleHeader(String headerName) {
-        List<String> values = getHeader(headerName);
-        return values.isEmpty() ?
-                null :
-                values.get(0);
+        int index = findHeader(headerName);
+        return index >= 0 ?
+                getHeaderValue(index) :
+                null;
     }
 
     public boolean hasHeader(String headerName) {
-        return getSingleHeader(headerName) != null;
+        return findHeader(headerName) >= 0;
     }
 
     public int getMarshalledSize() {
-        return rawHeader.length()
-                + 4 // '\r\n\r\n'
-                + content.length;
+        return contentOffset + contentLength;
     }
 
     public String getUriPath() {
-        return StringUtils.ensureString(uriPath);
+        if (uriPath == null) {
+            uriPath = StringUtils.ensureString(UrlUtils.getUrlPath(getUri()));
+        }
+        return uriPath;
     }
 
     public Map<String, String> getUriParams() {
+        if (uriParams == null) {
+            uriParams = UrlUtils.parseUriParams(UrlUtils.getUriParamsPart(getUri()));
+        }
         return uriParams;
     }
 
-    private void parse(byte[] data, int length) throws NonCompleteHttpRequestException {
-        Precondition.expected(data != null && data.length >= length, "data must not be null");
-
-        int headerLength = findHeaderSeparator(data, length);
-        if (headerLength <= 0) {
-            throw new NonCompleteHttpRequestException("Can't find header separator.");
-        }
-        parseHeader(data, headerLength);
-        parseContent(data, headerLength, length);
-    }
-
-    private static int findHeaderSeparator(byte[] data, int length) {
-        // Ищем разделитель '\r\n\r\n'
-        int offset = 0;
-        int curIndex = 0;
-        while (curIndex >= 0 && offset < length - 3) {
-            curIndex = findNext(data, length, offset, (byte) '\r');
-            if (data[curIndex + 1] == '\n'
-                    && data[curIndex + 2] == '\r'
-                    && data[curIndex + 3] == '\n') {
-                return curIndex;
-            }
-            offset = curIndex + 1;
-        }
-        return -1;
+    public int getContentLengthFromHeader() {
+        return contentLength;
     }
 
-    private static int findNext(byte[] data, int dataLength, int fromIndex, byte what) {
-        for (int i = fromIndex; i < dataLength; ++i) {
-            if (data[i] == what) {
-                return i;
+    private int findHeader(String headerName) {
+        if (headerName != null) {
+            byte[] name = toLowerCaseAscii(headerName);
+            for (int i = 0; i < headersCount; ++i) {
+                if (isHeaderName(i, name)) {
+                    return i;
+                }
             }
         }
         return -1;
     }
 
-    private void parseHeader(byte[] data, int headerLength) throws NonCompleteHttpRequestException {
-        headers.clear();
-
-        rawHeader = StringUtils.toUtf8String(data, 0, headerLength);
-        // Разделяем на кусочки.
-        String[] lines = rawHeader.split("\\r\\n");
-        // Первая строка содержит URI
-        if (lines.length < 1) {
-            throw new NonCompleteHttpRequestException("Not found first line with URI");
-        }
-        parseMethodAndUri(lines[0]);
-
-        // Теперь заголовки..
-        for (int i = 1; i < lines.length; ++i) {
-            String name = parseHeaderName(lines[i]);
-            String value = parseHeaderValue(lines[i]);
-            String headerKeyInMap = name.toLowerCase();
-            if (!headers.containsKey(headerKeyInMap)) {
-                headers.put(headerKeyInMap, new ArrayList<String>(1));
-            }
-            headers.get(headerKeyInMap).add(value);
-        }
+    private boolean isHeaderName(int index, byte[] lowerCaseName) {
+        return HttpRequestHeadParser.equalsIgnoreCase(
+                data, headerOffsets[index * 4], headerOffsets[index * 4 + 1], lowerCaseName);
     }
 
-    // GET /uri/ HTTP/1.1
-    private void parseMethodAndUri(String line) {
-        Matcher matcher = URI_PATTERN.matcher(line);
-        if (!matcher.matches() || matcher.groupCount() != 2) {
-            throw new IllegalArgumentException("Can't parse Method and URI from line: '" + line + "'");
-        }
-        method = matcher.group(1);
-        uri = matcher.group(2);
-
-        uriParams = UrlUtils.parseUriParams(UrlUtils.getUriParamsPart(uri));
-        uriPath = UrlUtils.getUrlPath(uri);
-    }
-
-    private static String parseHeaderName(String line) {
-        return line.contains(":") ?
-                line.substring(0, line.indexOf(":")).trim() :
-                line;
-    }
-
-    private static String parseHeaderValue(String line) {
-        return line.contains(":") ?
-                line.substring(line.indexOf(":") + 1).trim() :
-                "";
+    private String getHeaderValue(int index) {
+        int start = headerOffsets[index * 4 + 2];
+        int end = headerOffsets[index * 4 + 3];
+        return StringUtils.toUtf8String(data, start, end - start);
     }
 
-    private void parseContent(byte[] data, int headerLength, int length) throws NonCompleteHttpRequestException {
-        int contentOffset = headerLength + 4; // skip '\r\n\r\n'.
-        int contentLengthByHeader = getContentLengthFromHeader();
-        if (contentLengthByHeader > 0) {
-            int remainingInBuffer = length - contentOffset;
-            if (contentLengthByHeader > remainingInBuffer) {
-                throw new NonCompleteHttpRequestException("Not all content in buffer");
-            }
-            content = Arrays.copyOfRange(data, contentOffset, contentOffset + contentLengthByHeader);
-        }
-    }
-
-    public int getContentLengthFromHeader() {
-        List<String> values = getHeader("Content-Length");
-        if (values.isEmpty()) {
-            return 0; // Считаем, что в запросе только заголовок.
-        } else {
-            return Integer.parseInt(values.get(0));
+    private static byte[] toLowerCaseAscii(String name) {
+        byte[] result = new byte[name.length()];
+        for (int i = 0; i < result.length; ++i) {
+            char c = name.charAt(i);
+            result[i] = (byte) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
         }
+        return result;
     }
 
     // Пробует парсить пакет, вернет длину валидного пакета в байтах.
     // Иначе вернет -1;
     public static int tryParse(byte[] data, int length) {
-        try {
-            return tryParseLocal(data, length);
-        } catch (NonCompleteHttpRequestException e) {
-            return 0;
-        }
-    }
-
-
-    // Пробует парсить пакет, вернет длину валидного пакета в байтах.
-    // Иначе вернет -1;
-    private static int tryParseLocal(byte[] data, int length) throws NonCompleteHttpRequestException {
         Precondition.expected(data != null, "data is must not be null");
         Precondition.expected(length > 0 && length <= data.length, "length must be > 0");
 
-        int headerLength = findHeaderSeparator(data, length);
-        if (headerLength <= 0) {
-            return -1;
-        }
-
-        String rawHeader = StringUtils.toUtf8String(data, 0, headerLength);
-        // Разделяем на кусочки.
-        String[] lines = rawHeader.split("\\r\\n");
-        // Первая строка содержит URI
-        if (lines.length < 1) {
-            return -1;
-        }
-
-        int contentLengthByHeader = 0;
-        // Теперь заголовки..
-        for (int i = 1; i < lines.length; ++i) {
-            String name = parseHeaderName(lines[i]);
-            String value = parseHeaderValue(lines[i]);
-            if (name.equalsIgnoreCase("Content-Length")) {
-                contentLengthByHeader = Integer.parseInt(value);
-                break;
-            }
-        }
-
-        int expectedRequestSize = headerLength + 4 + contentLengthByHeader; // skip '\r\n\r\n'.
-        return expectedRequestSize <= length ?
-                expectedRequestSize :
-                -1;
+        return new HttpRequestHeadParser().parse(data, length);
     }
 
     @Override
     public String toString() {
-        return "HttpRequest{" + StringUtils.ensureString(method) + " " + StringUtils.ensureString(uri) + "}";
+        return "HttpRequest{" + getMethod() + " " + getUri() + "}";
     }
 }
@@ -0,0 +1,187 @@
+package com.borunovv.wsserver.protocol.http;
+
+import com.borunovv.contract.Precondition;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Инкрементальный разборщик HTTP/1.1 запроса (стартовая строка + заголовки) прямо по байтам.
+ * Между вызовами parse() помнит, докуда дошел, поэтому при дочитывании запроса
+ * каждый байт просматривается один раз. Строк не создает: запоминает только смещения
+ * метода, URI, имен и значений заголовков (см. buildRequest()).
+ * Ожидает, что при повторных вызовах начало данных не меняется (к ним только дописывается хвост).
+ */
+public final class HttpRequestHeadParser {
+
+    private static final byte[] CONTENT_LENGTH = {'c', 'o', 'n', 't', 'e', 'n', 't', '-', 'l', 'e', 'n', 'g', 't', 'h'};
+
+    // Докуда просмотрено и где начинается текущая (еще не законченная) строка.
+    private int scanOffset;
+    private int lineStart;
+
+    // Результат разбора (забирает HttpRequest).
+    int methodStart = -1;
+    int methodEnd;
+    int uriStart;
+    int uriEnd;
+
+    // По 4 смещения на заголовок: начало и конец имени, начало и конец значения.
+    int[] headerOffsets = new int[4 * 16];
+    int headersCount;
+
+    int contentOffset = -1; // Начало тела (-1 - заголовок еще не дочитан).
+    int contentLength;
+
+    /**
+     * Продолжает разбор (data[0..length) - запрос целиком или его начало).
+     * Вернет длину всего запроса (с телом), если он уже получен целиком, иначе -1.
+     */
+    public int parse(byte[] data, int length) {
+        Precondition.expected(data != null, "data is must not be null");
+        Precondition.expected(length >= scanOffset && length <= data.length, "unexpected data length: " + length);
+
+        while (contentOffset < 0 && scanOffset < length) {
+            if (data[scanOffset] == '\n') {
+                onLine(data, lineStart, lineEnd(data, scanOffset));
+                lineStart = scanOffset + 1;
+            }
+            scanOffset++;
+        }
+
+        if (contentOffset < 0) {
+            return -1;
+        }
+        int requestLength = contentOffset + contentLength;
+        return requestLength <= length ?
+                requestLength :
+                -1;
+    }
+
+    /**
+     * Запрос по разобранным смещениям. requestData - копия данных запроса (с того же начала),
+     * длиной не меньше, чем вернул parse().
+     */
+    public HttpRequest buildRequest(byte[] requestData) {
+        Precondition.expected(contentOffset >= 0, "HTTP request head is not parsed yet");
+        Precondition.expected(requestData.length >= contentOffset + contentLength, "not enough request data");
+        return new HttpRequest(requestData, this);
+    }
+
+    // Строка кончается на '\n' или на "\r\n".
+    private static int lineEnd(byte[] data, int newLineIndex) {
+        return newLineIndex > 0 && data[newLineIndex - 1] == '\r' ?
+                newLineIndex - 1 :
+                newLineIndex;
+    }
+
+    private void onLine(byte[] data, int start, int end) {
+        if (methodStart < 0) {
+            parseRequestLine(data, start, end);
+        } else if (start == end) {
+            // Пустая строка - конец заголовка.
+            contentOffset = scanOffset + 1;
+        } else {
+            parseHeaderLine(data, start, end);
+        }
+    }
+
+    // GET /uri/ HTTP/1.1
+    private void parseRequestLine(byte[] data, int start, int end) {
+        methodStart = start;
+        methodEnd = skipNonSpaces(data, start, end);
+        uriStart = skipSpaces(data, methodEnd, end);
+        uriEnd = skipNonSpaces(data, uriStart, end);
+        int versionStart = skipSpaces(data, uriEnd, end);
+        if (methodEnd == methodStart || uriEnd == uriStart || versionStart == uriEnd) {
+            throw new IllegalArgumentException("Can't parse Method and URI from line: '"
+                    + new String(data, start, end - start, StandardCharsets.ISO_8859_1) + "'");
+        }
+    }
+
+    // Name: value
+    private void parseHeaderLine(byte[] data, int start, int end) {
+        int colon = start;
+        while (colon < end && data[colon] != ':') {
+            colon++;
+        }
+
+        int nameStart = skipSpaces(data, start, colon);
+        int nameEnd = trimEnd(data, nameStart, colon);
+        int valueStart = colon < end ? skipSpaces(data, colon + 1, end) : end;
+        int valueEnd = trimEnd(data, valueStart, end);
+        addHeader(nameStart, nameEnd, valueStart, valueEnd);
+
+        if (equalsIgnoreCase(data, nameStart, nameEnd, CONTENT_LENGTH)) {
+            contentLength = parseContentLength(data, valueStart, valueEnd);
+        }
+    }
+
+    private void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        int index = headersCount * 4;
+        if (index + 4 > headerOffsets.length) {
+            headerOffsets = Arrays.copyOf(headerOffsets, headerOffsets.length * 2);
+        }
+        headerOffsets[index] = nameStart;
+        headerOffsets[index + 1] = nameEnd;
+        headerOffsets[index + 2] = valueStart;
+        headerOffsets[index + 3] = valueEnd;
+        headersCount++;
+    }
+
+    private static int parseContentLength(byte[] data, int start, int end) {
+        if (start == end || end - start > 9) {
+            throw new IllegalArgumentException("Bad Content-Length header");
+        }
+        int result = 0;
+        for (int i = start; i < end; ++i) {
+            int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Bad Content-Length header");
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    static boolean equalsIgnoreCase(byte[] data, int start, int end, byte[] lowerCaseName) {
+        if (end - start != lowerCaseName.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseName.length; ++i) {
+            byte b = data[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int skipSpaces(byte[] data, int from, int end) {
+        while (from < end && isSpace(data[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int skipNonSpaces(byte[] data, int from, int end) {
+        while (from < end && !isSpace(data[from])) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] data, int start, int end) {
+        while (end > start && isSpace(data[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+}
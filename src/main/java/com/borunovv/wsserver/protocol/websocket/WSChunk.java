@@ -3,6 +3,9 @@ package com.borunovv.wsserver.protocol.websocket;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Заголовок текущего фрейма (чанка), который разбирает WSChunkParser.
+ */
 class WSChunk {
 
     public enum Type {UNDEFINED, CONNECTION_CLOSED, PING, PONG, BINARY, UTF8, CONTINUATION}
@@ -22,22 +25,18 @@ class WSChunk {
     }
 
 
-    public int offset;
-    public int length;
-
     public boolean isFIN;
     public int opcode;
 
-    public int maskOffset;
-    public int payloadOffset;
-    public int payloadLength;
-
-    public boolean hasMask() {
-        return maskOffset > 0;
-    }
+    public boolean hasMask;
+    public final byte[] mask = new byte[4];
+    public long payloadLength;
 
-    public boolean hasPayload() {
-        return payloadOffset > 0 && payloadLength > 0;
+    public void clear() {
+        isFIN = false;
+        opcode = 0;
+        hasMask = false;
+        payloadLength = 0;
     }
 
     public Type getType() {
@@ -1,209 +1,272 @@
 package com.borunovv.wsserver.protocol.websocket;
 
-import com.borunovv.util.DebugUtils;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Инкрементальный парсер входящего потока websocket-фреймов (чанков).
+ * Один экземпляр на сессию: между чтениями из сокета помнит заголовок текущего
+ * фрейма, маску и сколько payload уже прочитано. Каждый байт потока разбирается
+ * ровно один раз, payload сразу демаскируется в итоговый массив сообщения.
+ * В ленивом режиме (deferUnmask) payload нефрагментированных data-сообщений только копируется,
+ * а демаскирование откладывается до того, кто будет сообщение обрабатывать (см. getCompletedMask()).
+ * (см. https://tools.ietf.org/html/rfc6455#section-5.2)
+ */
+final class WSChunkParser {
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+    private static final int MAX_CONTROL_PAYLOAD_SIZE = 125;
+    // Сколько максимум выделяем под payload заранее, по одной лишь длине из заголовка.
+    // Дальше массив растет по мере прихода данных: иначе клиент, объявивший большой фрейм
+    // и замолчавший, держал бы память под все сообщение.
+    private static final int MAX_INITIAL_PAYLOAD_ALLOCATION = 64 * 1024;
 
+    private enum State {FIRST_BYTE, SECOND_BYTE, PAYLOAD_LENGTH, MASK, PAYLOAD}
 
-final class WSChunkParser {
+    private final int maxMessageSize;
+    private final boolean deferUnmask;
 
-    /**
-     * Парсит поток данных насколько может.
-     * Вернет пустой список чанков, если в потоке находится неполное
-     * сообщение иначе вернет все чанки сообщения, включая (теоритически возможные)
-     * управляющие сообщения (усправляющие всегда занимают ровно 1 чанк) типа "пинг"/"разрыв связи"
-     * и т.п., вкрапленные между data-чанками.
-     *
-     * @param fromIndex inclusive
-     * @param toIndex   exclusive
-     */
-    static List<WSChunk> tryParseOneMessage(byte[] data, int fromIndex, int toIndex) {
-        List<WSChunk> chunks = tryParse(data, fromIndex, toIndex);
-        return isCompletedMessage(chunks) ?
-                chunks :
-                Collections.emptyList();
-    }
+    private State state = State.FIRST_BYTE;
+    private final WSChunk chunk = new WSChunk();
+    private int headerBytesRemaining; // Сколько байт длины/маски осталось дочитать.
+    private long chunkPayloadRead;
 
+    // Собираемое data-сообщение (может состоять из нескольких фреймов).
+    private WSChunk.Type messageType; // null, если сейчас не внутри сообщения.
+    private byte[] messageData;
+    private int messageLength;
+    private byte[] messageMask; // Маска, если демаскирование сообщения отложено.
 
-    /**
-     * Вернет суммарную длину буфера, занятую данными чанками.
-     */
-    static int getTotalChunksLength(List<WSChunk> chunks) {
-        int total = 0;
-        for (WSChunk chunk : chunks) {
-            total += chunk.length;
-        }
-        return total;
+    // Управляющие фреймы не фрагментируются и могут быть вкраплены между data-фреймами.
+    private final byte[] controlData = new byte[MAX_CONTROL_PAYLOAD_SIZE];
+
+    // Последнее собранное сообщение.
+    private WSChunk.Type completedType;
+    private byte[] completedPayload;
+    private byte[] completedMask;
+
+    WSChunkParser(int maxMessageSize) {
+        this(maxMessageSize, false);
     }
 
+    WSChunkParser(int maxMessageSize, boolean deferUnmask) {
+        this.maxMessageSize = maxMessageSize;
+        this.deferUnmask = deferUnmask;
+    }
 
     /**
-     * Соберет по кусочкам весь payload.
+     * Разбирает данные из буфера (в режиме чтения), пока не соберется целое сообщение
+     * или не кончатся данные. Разобранные байты из буфера вычитываются.
+     * Вернет true, если сообщение собрано (см. getCompletedType() и takeCompletedPayload()).
      */
-    static byte[] readPayload(List<WSChunk> chunks, byte[] data) {
-        int payloadLength = 0;
-        for (WSChunk chunk : chunks) {
-            payloadLength += chunk.payloadLength;
-        }
-
-        byte[] payloadData = new byte[payloadLength];
-        int offset = 0;
-        for (WSChunk chunk : chunks) {
-            if (!chunk.isControl() && chunk.hasPayload()) {
-                if (chunk.hasMask()) {
-                    // Decode using XOR mask.
-                    for (int i = 0; i < chunk.payloadLength; ++i) {
-                        payloadData[offset] = (byte) (data[chunk.payloadOffset + i] ^ data[chunk.maskOffset + i % 4]);
-                        offset++;
+    boolean parse(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && completedType == null) {
+            switch (state) {
+                case FIRST_BYTE:
+                    readFirstByte(buffer.get() & 0xFF);
+                    break;
+                case SECOND_BYTE:
+                    readSecondByte(buffer.get() & 0xFF);
+                    break;
+                case PAYLOAD_LENGTH:
+                    chunk.payloadLength = (chunk.payloadLength << 8) | (buffer.get() & 0xFF);
+                    if (--headerBytesRemaining == 0) {
+                        onPayloadLengthRead();
+                    }
+                    break;
+                case MASK:
+                    chunk.mask[4 - headerBytesRemaining] = buffer.get();
+                    if (--headerBytesRemaining == 0) {
+                        onHeaderRead();
                     }
-                } else if (chunk.hasPayload()) {
-                    System.arraycopy(data, chunk.payloadOffset, payloadData, offset, chunk.payloadLength);
-                    offset += chunk.payloadLength;
-                }
+                    break;
+                case PAYLOAD:
+                    readPayload(buffer);
+                    break;
+                default:
+                    throw new RuntimeException("Illegal parser state: " + state);
             }
         }
-
-        return payloadData;
+        return completedType != null;
     }
 
     /**
-     * Выберет только управляющие фреймы из потока.
-     * (см. https://tools.ietf.org/html/rfc6455#section-5.5)
+     * Тип собранного сообщения (UTF8, BINARY или один из управляющих).
      */
-    static List<WSChunk> getControlChunksOnly(List<WSChunk> chunks) {
-        List<WSChunk> controlChunks = new LinkedList<>();
-
-        for (WSChunk chunk : chunks) {
-            if (chunk.isControl()) {
-                controlChunks.add(chunk);
-            }
-        }
-
-        return controlChunks;
+    WSChunk.Type getCompletedType() {
+        return completedType;
     }
 
-
     /**
-     * Вернет true, если данная последовательность чанков содержит полное сообщение.
+     * Маска, которую еще надо применить к payload собранного сообщения (см. unmask()).
+     * null, если payload уже демаскирован.
      */
-    private static boolean isCompletedMessage(List<WSChunk> chunks) {
-        return !chunks.isEmpty()
-                && chunks.get(chunks.size() - 1).isFIN;
+    byte[] getCompletedMask() {
+        return completedMask;
     }
 
-
     /**
-     * Парсит поток данных насколько может.
-     *
-     * @param fromIndex inclusive
-     * @param toIndex   exclusive
+     * Заберет payload собранного сообщения и подготовит парсер к следующему.
+     * Payload демаскирован, если getCompletedMask() вернул null.
      */
-    private static List<WSChunk> tryParse(byte[] data, int fromIndex, int toIndex) {
-        List<WSChunk> chunks = new ArrayList<>();
-        int offset = fromIndex;
-
-        while (offset < toIndex) {
-            WSChunk chunk = readChunk(data, offset, toIndex);
-            if (chunk != null) {
-                chunks.add(chunk);
-                if (chunk.isControl() && chunks.size() == 1) {
-                    break;
-                }
-
-                if (!chunk.isControl() && chunk.isFIN) {
-                    break;
-                }
+    byte[] takeCompletedPayload() {
+        byte[] result = completedPayload;
+        completedType = null;
+        completedPayload = null;
+        completedMask = null;
+        return result;
+    }
 
-                offset += chunk.length;
-            } else {
-                break;
-            }
+    /**
+     * Демаскирует count байт data начиная с offset. maskIndex - индекс байта маски для первого из них.
+     */
+    static void unmask(byte[] data, int offset, int count, byte[] mask, int maskIndex) {
+        for (int i = 0; i < count; ++i) {
+            data[offset + i] ^= mask[(maskIndex + i) & 3];
         }
+    }
 
-        return chunks;
+    /**
+     * Вернет true, если разобрана только часть сообщения.
+     */
+    boolean isInsideMessage() {
+        return state != State.FIRST_BYTE || messageType != null;
     }
 
+    private void readFirstByte(int firstByte) {
+        chunk.clear();
+        chunk.isFIN = (firstByte & 0x80) > 0;
+        chunk.opcode = firstByte & 0x0F;
 
-    private static WSChunk readChunk(byte[] data, int fromIndex, int toIndex) {
-        if (toIndex <= fromIndex) {
-            return null;
+        WSChunk.Type type = chunk.getType();
+        if (type == WSChunk.Type.UNDEFINED) {
+            throw new RuntimeException("Undefined opcode: " + chunk.opcode);
         }
-        int offset = fromIndex;
-
-        WSChunk result = new WSChunk();
-        result.offset = fromIndex;
 
-        int firstByte = data[offset++] & 0xFF;
-        result.isFIN = (firstByte & 0x80) > 0;
-        result.opcode = firstByte & 0x0F;
-
-        if (result.getType() == WSChunk.Type.UNDEFINED) {
-            throw new RuntimeException("Undefined opcode: " + result.opcode
-                    + "\nChunk data:\n" + DebugUtils.toString(data, fromIndex, toIndex));
+        if (chunk.isControl()) {
+            if (!chunk.isFIN) {
+                throw new RuntimeException("Fragmented control frame: " + type);
+            }
+        } else if (type == WSChunk.Type.CONTINUATION) {
+            if (messageType == null) {
+                throw new RuntimeException("Unexpected continuation frame");
+            }
+        } else {
+            if (messageType != null) {
+                throw new RuntimeException("Expected continuation frame, actual is: " + type);
+            }
+            messageType = type;
+            messageLength = 0;
         }
 
-        if (offset >= toIndex) {
-            return null;
-        }
+        state = State.SECOND_BYTE;
+    }
 
-        int secondByte = data[offset++] & 0xFF;
-        boolean hasMask = (secondByte & 0x80) > 0;
+    private void readSecondByte(int secondByte) {
+        chunk.hasMask = (secondByte & 0x80) > 0;
         int len7 = secondByte & 0x7F;
 
         if (len7 <= 125) {
-            result.payloadLength = len7;
-
-        } else if (len7 == 126) {
-            result.payloadLength = readPayloadLength(data, offset, toIndex, 2);
-            if (result.payloadLength < 0) {
-                return null;
-            }
-            offset += 2;
+            chunk.payloadLength = len7;
+            onPayloadLengthRead();
+        } else {
+            chunk.payloadLength = 0;
+            headerBytesRemaining = (len7 == 126) ? 2 : 8;
+            state = State.PAYLOAD_LENGTH;
+        }
+    }
 
-        } else if (len7 == 127) {
-            result.payloadLength = readPayloadLength(data, offset, toIndex, 8);
-            if (result.payloadLength < 0) {
-                return null;
+    private void onPayloadLengthRead() {
+        if (chunk.payloadLength < 0) {
+            throw new RuntimeException("Illegal payload size (most significant bit is set)");
+        }
+        if (chunk.isControl()) {
+            if (chunk.payloadLength > MAX_CONTROL_PAYLOAD_SIZE) {
+                throw new RuntimeException("Too big control frame payload: " + chunk.payloadLength);
             }
-            offset += 8;
-        } else {
-            throw new RuntimeException("Illegal state, len7 = " + len7);
+        } else if (messageLength + chunk.payloadLength > maxMessageSize) {
+            throw new RuntimeException("Too big message: " + (messageLength + chunk.payloadLength)
+                    + " bytes. Max allowed size: " + maxMessageSize + " bytes");
         }
 
-        if (hasMask) {
-            result.maskOffset = offset;
-            offset += 4;
+        if (chunk.hasMask) {
+            headerBytesRemaining = 4;
+            state = State.MASK;
+        } else {
+            onHeaderRead();
         }
+    }
 
-        result.payloadOffset = offset;
+    private void onHeaderRead() {
+        chunkPayloadRead = 0;
+        state = State.PAYLOAD;
 
-        if (result.payloadOffset + result.payloadLength > toIndex) {
-            return null;
+        if (!chunk.isControl()) {
+            ensureMessageCapacity(messageLength + (int) Math.min(chunk.payloadLength, MAX_INITIAL_PAYLOAD_ALLOCATION));
+            // Откладываем только сообщения из одного фрейма: у фрагментов свои маски.
+            if (deferUnmask && chunk.hasMask && chunk.isFIN && messageLength == 0
+                    && chunk.getType() != WSChunk.Type.CONTINUATION) {
+                messageMask = chunk.mask.clone();
+            }
         }
 
-        offset += result.payloadLength;
-        result.length = offset - result.offset;
+        if (chunk.payloadLength == 0) {
+            onChunkFinished();
+        }
+    }
 
-        return result;
+    private void ensureMessageCapacity(int required) {
+        if (messageData == null) {
+            // Обычно сообщение состоит из одного небольшого фрейма - выделяем ровно сколько нужно.
+            messageData = new byte[required];
+        } else if (messageData.length < required) {
+            int newSize = Math.max(required, (int) Math.min(maxMessageSize, messageData.length * 2L));
+            messageData = Arrays.copyOf(messageData, newSize);
+        }
     }
 
+    private void readPayload(ByteBuffer buffer) {
+        int count = (int) Math.min(buffer.remaining(), chunk.payloadLength - chunkPayloadRead);
+
+        byte[] target;
+        int targetOffset;
+        if (chunk.isControl()) {
+            target = controlData;
+            targetOffset = (int) chunkPayloadRead;
+        } else {
+            ensureMessageCapacity(messageLength + count);
+            target = messageData;
+            targetOffset = messageLength;
+            messageLength += count;
+        }
 
-    private static int readPayloadLength(byte[] data, int fromIndex, int toIndex, int bytesCount) {
-        if (fromIndex + bytesCount > toIndex) {
-            return -1;
+        buffer.get(target, targetOffset, count);
+        if (chunk.hasMask && (chunk.isControl() || messageMask == null)) {
+            unmask(target, targetOffset, count, chunk.mask, (int) (chunkPayloadRead & 3));
         }
+        chunkPayloadRead += count;
 
-        long result = 0;
-        for (int i = 0; i < bytesCount; ++i) {
-            int curByte = data[fromIndex + i] & 0xFF;
-            result = (result << 8) | curByte;
+        if (chunkPayloadRead == chunk.payloadLength) {
+            onChunkFinished();
         }
-        if (result > 0x7FFFFFFFL) {
-            throw new RuntimeException("Too big payload size: " + result);
+    }
+
+    private void onChunkFinished() {
+        state = State.FIRST_BYTE;
+
+        if (chunk.isControl()) {
+            completedType = chunk.getType();
+            completedPayload = Arrays.copyOf(controlData, (int) chunk.payloadLength);
+        } else if (chunk.isFIN) {
+            completedType = messageType;
+            completedPayload = messageData.length == messageLength ?
+                    messageData :
+                    Arrays.copyOf(messageData, messageLength);
+            completedMask = messageMask;
+
+            messageType = null;
+            messageMask = null;
+            messageData = null;
+            messageLength = 0;
         }
-        return (int) result;
     }
 }
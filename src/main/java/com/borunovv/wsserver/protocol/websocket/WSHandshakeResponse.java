@@ -0,0 +1,67 @@
+package com.borunovv.wsserver.protocol.websocket;
+
+import com.borunovv.util.StringUtils;
+import com.borunovv.wsserver.protocol.http.HttpResponse;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Ответ на websocket handshake (HTTP 101).
+ * Сериализуется по заранее собранному шаблону: меняются только Sec-WebSocket-Accept
+ * и необязательные заголовки, поэтому незачем собирать строку заново на каждый handshake.
+ */
+final class WSHandshakeResponse extends HttpResponse {
+
+    // Те же заголовки, что выдавал HttpResponse.marshall().
+    private static final byte[] HEAD = ascii("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Cache-Control: no-cache, no-store, must-revalidate\r\n"
+            + "Pragma: no-cache\r\n"
+            + "Expires: 0\r\n"
+            + "Content-Length: 0\r\n"
+            + "Sec-WebSocket-Accept: ");
+    private static final byte[] PROTOCOL_HEADER = ascii("\r\nSec-WebSocket-Protocol: ");
+    private static final byte[] CORS_HEADER = ascii("\r\nAccess-Control-Allow-Origin: *");
+    private static final byte[] TAIL = ascii("\r\n\r\n");
+
+    private final byte[] accept;
+    private final byte[] protocol;
+    private final boolean allowAnyOrigin;
+
+    WSHandshakeResponse(String accept, String protocol, boolean allowAnyOrigin) {
+        super(101);
+        this.accept = ascii(accept);
+        this.protocol = protocol != null ? StringUtils.uft8StringToBytes(protocol) : null;
+        this.allowAnyOrigin = allowAnyOrigin;
+    }
+
+    @Override
+    public byte[] marshall() {
+        int size = HEAD.length + accept.length + TAIL.length
+                + (protocol != null ? PROTOCOL_HEADER.length + protocol.length : 0)
+                + (allowAnyOrigin ? CORS_HEADER.length : 0);
+
+        byte[] result = new byte[size];
+        int offset = put(HEAD, result, 0);
+        offset = put(accept, result, offset);
+        if (protocol != null) {
+            offset = put(PROTOCOL_HEADER, result, offset);
+            offset = put(protocol, result, offset);
+        }
+        if (allowAnyOrigin) {
+            offset = put(CORS_HEADER, result, offset);
+        }
+        put(TAIL, result, offset);
+        return result;
+    }
+
+    private static int put(byte[] src, byte[] dst, int offset) {
+        System.arraycopy(src, 0, dst, offset, src.length);
+        return offset + src.length;
+    }
+
+    private static byte[] ascii(String str) {
+        return str.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -8,26 +8,25 @@ import com.borunovv.wsserver.protocol.AbstractMessage;
 import com.borunovv.wsserver.protocol.http.HttpMessage;
 import com.borunovv.wsserver.protocol.http.HttpRequest;
 import com.borunovv.wsserver.protocol.http.HttpResponse;
-import com.borunovv.wsserver.protocol.http.NonCompleteHttpRequestException;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.List;
 
 
 public class WSMessage extends AbstractMessage {
     public enum Type {HANDSHAKE, CONNECTION_CLOSED, PING, PONG, BINARY, UTF8}
 
+    private static final int MAX_CONTROL_PAYLOAD_SIZE = 125;
+
     private HttpMessage handShakeMessage;
+    // Пришедший handshake-запрос, на который еще не готов ответ (см. WSProtocol.completeHandshake()).
+    private HttpRequest handshakeRequest;
     private Type type;
     private byte[] binaryData;
-    private String utf8Text;
-    private List<WSMessage> interleavedControlMessages = new ArrayList<WSMessage>(10);
-
-    public WSMessage(RWSession session, byte[] data, int length) {
-        super(session);
-        unmarshall(session, data, length);
-    }
+    private volatile String utf8Text;
+    // Ленивый режим (см. fromRawPayload()): текст еще не декодирован, payload может быть еще и замаскирован.
+    private byte[] utf8Data;
+    private volatile byte[] payloadMask;
 
     private WSMessage(RWSession session, Type type) {
         super(session);
@@ -38,10 +37,24 @@ public class WSMessage extends AbstractMessage {
         return new WSMessage(session, Type.PING);
     }
 
+    /**
+     * Ping с данными (не больше 125 байт), клиент вернет их в pong.
+     */
+    public static WSMessage makePing(RWSession session, byte[] payload) {
+        return withControlPayload(new WSMessage(session, Type.PING), payload);
+    }
+
     public static WSMessage makePong(RWSession session) {
         return new WSMessage(session, Type.PONG);
     }
 
+    /**
+     * Pong с данными из ping (по RFC 6455 они должны вернуться без изменений).
+     */
+    public static WSMessage makePong(RWSession session, byte[] payload) {
+        return withControlPayload(new WSMessage(session, Type.PONG), payload);
+    }
+
     public static WSMessage makeConnectionClosed(RWSession session) {
         return new WSMessage(session, Type.CONNECTION_CLOSED);
     }
@@ -58,8 +71,79 @@ public class WSMessage extends AbstractMessage {
         return msg;
     }
 
-    public List<WSMessage> getInterleavedControlMessages() {
-        return interleavedControlMessages;
+    /**
+     * Собирает сообщение из payload, уже разобранного и демаскированного парсером.
+     */
+    static WSMessage fromPayload(RWSession session, WSChunk.Type chunkType, byte[] payload) {
+        switch (chunkType) {
+            case BINARY:
+                return makeBinary(session, payload);
+            case UTF8:
+                return makeUtf8(session, StringUtils.toUtf8String(payload));
+            case CONNECTION_CLOSED:
+                return withPayload(new WSMessage(session, Type.CONNECTION_CLOSED), payload);
+            case PING:
+                return withPayload(new WSMessage(session, Type.PING), payload);
+            case PONG:
+                return withPayload(new WSMessage(session, Type.PONG), payload);
+            default:
+                throw new RuntimeException("Unexpected message type: " + chunkType);
+        }
+    }
+
+    /**
+     * Собирает data-сообщение из payload как есть: демаскирование (если mask != null)
+     * и декодирование UTF-8 произойдут при первом обращении к содержимому - уже в потоке обработчика.
+     */
+    static WSMessage fromRawPayload(RWSession session, WSChunk.Type chunkType, byte[] payload, byte[] mask) {
+        WSMessage msg;
+        switch (chunkType) {
+            case BINARY:
+                msg = makeBinary(session, payload);
+                break;
+            case UTF8:
+                msg = new WSMessage(session, Type.UTF8);
+                msg.utf8Data = payload;
+                break;
+            default:
+                throw new RuntimeException("Unexpected data message type: " + chunkType);
+        }
+        msg.payloadMask = mask;
+        return msg;
+    }
+
+    private static WSMessage withControlPayload(WSMessage msg, byte[] payload) {
+        Precondition.expected(payload == null || payload.length <= MAX_CONTROL_PAYLOAD_SIZE,
+                "Control frame payload must be <= " + MAX_CONTROL_PAYLOAD_SIZE + " bytes");
+        return payload != null ?
+                withPayload(msg, payload) :
+                msg;
+    }
+
+    private static WSMessage withPayload(WSMessage msg, byte[] payload) {
+        if (payload.length > 0) {
+            msg.binaryData = payload;
+        }
+        return msg;
+    }
+
+    static WSMessage makeHandshakeRequest(RWSession session, HttpRequest request) {
+        WSMessage msg = new WSMessage(session, Type.HANDSHAKE);
+        msg.handshakeRequest = request;
+        return msg;
+    }
+
+    HttpRequest getHandshakeRequest() {
+        return handshakeRequest;
+    }
+
+    static WSMessage makeHandshake(RWSession session, HttpRequest handShakeRequest) {
+        WSMessage msg = new WSMessage(session, Type.HANDSHAKE);
+        msg.handShakeMessage = new HttpMessage(
+                session,
+                handShakeRequest,
+                makeHandshakeResponse(handShakeRequest));
+        return msg;
     }
 
     public Type getType() {
@@ -75,13 +159,39 @@ public class WSMessage extends AbstractMessage {
     }
 
     public byte[] getBinaryData() {
-        return binaryData;
+        return binaryData != null ? unmasked(binaryData) : null;
     }
 
     public String getUtf8Text() {
+        String text = utf8Text;
+        return text != null || utf8Data == null ?
+                text :
+                decodeUtf8Text();
+    }
+
+    private synchronized String decodeUtf8Text() {
+        if (utf8Text == null) {
+            utf8Text = StringUtils.toUtf8String(unmasked(utf8Data));
+        }
         return utf8Text;
     }
 
+    private byte[] unmasked(byte[] payload) {
+        if (payloadMask != null) {
+            unmaskPayload();
+        }
+        return payload;
+    }
+
+    private synchronized void unmaskPayload() {
+        byte[] mask = payloadMask;
+        if (mask != null) {
+            byte[] payload = type == Type.UTF8 ? utf8Data : binaryData;
+            WSChunkParser.unmask(payload, 0, payload.length, mask, 0);
+            payloadMask = null;
+        }
+    }
+
     public HttpMessage getHandShakeMessage() {
         return handShakeMessage;
     }
@@ -93,14 +203,13 @@ public class WSMessage extends AbstractMessage {
             case CONNECTION_CLOSED:
                 return new byte[]{(byte) 0x88, (byte) 0x00};
             case PING:
-                return new byte[]{(byte) 0x89, (byte) 0x00};
+                return marshallControl((byte) 0x89);
             case PONG:
-                return new byte[]{(byte) 0x8A, (byte) 0x00};
+                return marshallControl((byte) 0x8A);
 
             case BINARY:
-                return marshallData(binaryData, Type.BINARY);
             case UTF8:
-                return marshallData(StringUtils.uft8StringToBytes(utf8Text), Type.UTF8);
+                return marshallData(getPayloadToSend(), type);
 
             case HANDSHAKE:
                 if (!handShakeMessage.hasResponse()) {
@@ -114,21 +223,76 @@ public class WSMessage extends AbstractMessage {
         }
     }
 
-    // see https://developer.mozilla.org/en-US/docs/Web/API/WebSockets_API/Writing_WebSocket_servers
+    /**
+     * Фрейм целиком (заголовок + payload) в буфере только для чтения: кодируется один раз
+     * и отправляется многими сессиями (каждая пишет свой duplicate(), см. Server.broadcast()).
+     */
+    public ByteBuffer marshallReadOnly() {
+        Precondition.expected(isDataMessage(), "Expected types BINARY or UTF8, actual is: " + type);
+        return ByteBuffer.wrap(marshall()).asReadOnlyBuffer();
+    }
+
+    /**
+     * То же, что marshall(), но без копирования payload: для data-сообщений вернет
+     * отдельно заголовок фрейма и payload (обернутый по ссылке).
+     * Поэтому массив, переданный в makeBinary(), нельзя менять, пока сообщение не отправлено.
+     */
+    public ByteBuffer[] marshallBuffers() {
+        Precondition.expected(type != null, "Not initialized message. Type is undefined");
+
+        if (isDataMessage()) {
+            byte[] payload = getPayloadToSend();
+            return new ByteBuffer[]{
+                    ByteBuffer.wrap(makeFrameHeader(payload.length, type)),
+                    ByteBuffer.wrap(payload)};
+        } else {
+            return new ByteBuffer[]{ByteBuffer.wrap(marshall())};
+        }
+    }
+
+    private byte[] getPayloadToSend() {
+        if (type != Type.UTF8) {
+            return getBinaryData();
+        }
+        // Пришедший текст можно отправить как есть, не кодируя заново.
+        return utf8Data != null ?
+                unmasked(utf8Data) :
+                StringUtils.uft8StringToBytes(utf8Text);
+    }
+
+    // Управляющий фрейм (FIN = 1) с payload, если он есть.
+    private byte[] marshallControl(byte firstByte) {
+        int length = binaryData != null ? binaryData.length : 0;
+        byte[] result = new byte[2 + length];
+        result[0] = firstByte;
+        result[1] = (byte) length;
+        if (length > 0) {
+            System.arraycopy(binaryData, 0, result, 2, length);
+        }
+        return result;
+    }
+
     private byte[] marshallData(byte[] payloadData, Type type) {
+        byte[] header = makeFrameHeader(payloadData.length, type);
+        byte[] result = Arrays.copyOf(header, header.length + payloadData.length);
+        System.arraycopy(payloadData, 0, result, header.length, payloadData.length);
+        return result;
+    }
+
+    // see https://developer.mozilla.org/en-US/docs/Web/API/WebSockets_API/Writing_WebSocket_servers
+    private static byte[] makeFrameHeader(int payloadLength, Type type) {
         Precondition.expected(type == Type.BINARY || type == Type.UTF8,
                 "Expected types BINARY or UTF8, actual is: " + type);
 
-        long payloadLengthLong = payloadData.length;
+        long payloadLengthLong = payloadLength;
 
         int lenBytesCount = payloadLengthLong <= 125 ?
                 0 :
-                payloadData.length < (1 << 16) ?
+                payloadLength < (1 << 16) ?
                         2 :
                         8;
 
-        int bufLen = 2 + lenBytesCount + payloadData.length;
-        byte[] result = new byte[bufLen];
+        byte[] result = new byte[2 + lenBytesCount];
 
         byte firstByte = (byte) (type == Type.UTF8 ? 0x81 : 0x82); // FIN = 1, opcode = 1-text, 2-binary
         result[0] = firstByte;
@@ -157,129 +321,9 @@ public class WSMessage extends AbstractMessage {
                 throw new RuntimeException("Unexpected len bytes count: " + lenBytesCount);
         }
 
-        int payloadOffset = 2 + lenBytesCount;
-
-        System.arraycopy(payloadData, 0, result, payloadOffset, payloadData.length);
         return result;
     }
 
-    // see https://developer.mozilla.org/en-US/docs/Web/API/WebSockets_API/Writing_WebSocket_servers
-    public static int tryParse(byte[] data, int length) {
-        if (isHandshake(data, length)) {
-            return HttpRequest.tryParse(data, length);
-        } else {
-            List<WSChunk> chunks = WSChunkParser.tryParseOneMessage(data, 0, length);
-            if (chunks.isEmpty()) {
-                return 0;
-            }
-            // Определим длину всех чанков, это и будет кусок буфера с одним целым сообщением.
-            return WSChunkParser.getTotalChunksLength(chunks);
-        }
-    }
-
-    private void unmarshall(RWSession session, byte[] data, int length) {
-        if (isHandshake(data, length)) {
-            unmarshallHandShake(session, data, length);
-        } else {
-            unmarshallWSMessage(data, length);
-        }
-    }
-
-    private void unmarshallHandShake(RWSession session, byte[] data, int length) {
-        HttpRequest handShakeRequest;
-        try {
-            handShakeRequest = new HttpRequest(data, length);
-        } catch (NonCompleteHttpRequestException e) {
-            throw new RuntimeException("Unexpected state. Bad HTTP request: \n'"
-                    + StringUtils.toUtf8String(Arrays.copyOf(data, length)) + "'", e);
-        }
-
-        this.type = Type.HANDSHAKE;
-        this.binaryData = null;
-        this.utf8Text = null;
-        this.handShakeMessage = new HttpMessage(
-                session,
-                handShakeRequest,
-                makeHandshakeResponse(handShakeRequest));
-    }
-
-    private void unmarshallWSMessage(byte[] data, int length) {
-        List<WSChunk> chunks = WSChunkParser.tryParseOneMessage(data, 0, length);
-        if (chunks.isEmpty()) {
-            throw new RuntimeException("Unexpected. Buffer does not contain whole websocket message.");
-        }
-
-        this.interleavedControlMessages.clear();
-        this.handShakeMessage = null;
-        this.binaryData = null;
-        this.utf8Text = null;
-
-        WSChunk firstDataChunk = null;
-        for (WSChunk chunk : chunks) {
-            if (!chunk.isControl()) {
-                firstDataChunk = chunk;
-                break;
-            }
-        }
-
-        if (firstDataChunk != null) {
-            byte[] payload = WSChunkParser.readPayload(chunks, data);
-
-            switch (firstDataChunk.getType()) {
-                case BINARY:
-                    this.type = Type.BINARY;
-                    this.binaryData = payload;
-                    break;
-                case UTF8:
-                    this.type = Type.UTF8;
-                    this.utf8Text = StringUtils.toUtf8String(payload);
-                    break;
-                default:
-                    throw new RuntimeException("Unexpected first data chunk type: " + firstDataChunk.getType());
-            }
-
-
-            List<WSChunk> controlChunks = WSChunkParser.getControlChunksOnly(chunks);
-            for (WSChunk controlChunk : controlChunks) {
-                WSMessage msg = new WSMessage(getSession(), null);
-                msg.fromControlChunk(controlChunk, data);
-                interleavedControlMessages.add(msg);
-            }
-        } else {
-            Precondition.expected(chunks.size() == 1, "Expected only one control chunk");
-            fromControlChunk(chunks.get(0), data);
-        }
-    }
-
-    private void fromControlChunk(WSChunk controlChunk, byte[] data) {
-        switch (controlChunk.getType()) {
-            case CONNECTION_CLOSED:
-                type = Type.CONNECTION_CLOSED;
-                break;
-            case PING:
-                type = Type.PING;
-                break;
-            case PONG:
-                type = Type.PONG;
-                break;
-            default:
-                throw new RuntimeException("Unexpected control chunk type: " + controlChunk.getType());
-        }
-
-        if (controlChunk.hasPayload()) {
-            binaryData = Arrays.copyOfRange(data,
-                    controlChunk.payloadOffset,
-                    controlChunk.payloadOffset + controlChunk.payloadLength);
-        }
-    }
-
-    private static boolean isHandshake(byte[] data, int length) {
-        return length < 3 ||
-                (data[0] == (byte) 'G'
-                        && data[1] == (byte) 'E'
-                        && data[2] == (byte) 'T'); // GET
-    }
-
     private static HttpResponse makeHandshakeResponse(HttpRequest handShakeRequest) {
         String wsKey = handShakeRequest.getSingleHeader("Sec-WebSocket-Key");
         String secretGUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
@@ -287,23 +331,11 @@ public class WSMessage extends AbstractMessage {
         byte[] sha1 = CryptUtils.sha1(StringUtils.uft8StringToBytes(keyWithGUID));
         String base64encodedSha1 = CryptUtils.encodeBase64(sha1);
 
-        HttpResponse response = new HttpResponse(101);
-        response.setHeader("Upgrade", "websocket");
-        response.setHeader("Connection", "Upgrade");
-        response.setHeader("Sec-WebSocket-Accept", base64encodedSha1);
-
-        if (handShakeRequest.hasHeader("Sec-WebSocket-Protocol")) {
-            response.setHeader("Sec-WebSocket-Protocol",
-                    handShakeRequest.getSingleHeader("Sec-WebSocket-Protocol"));
-        }
-
-        if (handShakeRequest.hasHeader("Origin")) {
-            // Позволяем стучаться к нам с любых доменов == CORS (Cross-origin resource sharing)
-            // см. https://en.wikipedia.org/wiki/Cross-origin_resource_sharing
-            response.setHeader("Access-Control-Allow-Origin", "*");
-        }
-
-        return response;
+        // Позволяем стучаться к нам с любых доменов == CORS (Cross-origin resource sharing)
+        // см. https://en.wikipedia.org/wiki/Cross-origin_resource_sharing
+        return new WSHandshakeResponse(base64encodedSha1,
+                handShakeRequest.getSingleHeader("Sec-WebSocket-Protocol"),
+                handShakeRequest.hasHeader("Origin"));
     }
 
     @Override
@@ -316,24 +348,26 @@ public class WSMessage extends AbstractMessage {
         int maxDataLen = 500;
         String res = "";
         int contentLen = 0;
-        if (type == Type.BINARY && binaryData != null) {
+        byte[] data = type == Type.BINARY ? getBinaryData() : null;
+        String text = type == Type.UTF8 ? getUtf8Text() : null;
+        if (data != null) {
             res = "[";
-            int len = Math.min(binaryData.length, maxDataLen);
+            int len = Math.min(data.length, maxDataLen);
             for (int i = 0; i < len; ++i) {
-                res += binaryData[i] + ",";
+                res += data[i] + ",";
             }
-            if (len < binaryData.length) {
+            if (len < data.length) {
                 res += "...]";
             } else {
                 res += "]";
             }
-            contentLen = binaryData.length;
-        } else if (type == Type.UTF8 && utf8Text != null) {
-            res = "'" + (utf8Text.length() > maxDataLen ?
-                    (utf8Text.substring(0, maxDataLen) + "...") :
-                    utf8Text)
+            contentLen = data.length;
+        } else if (text != null) {
+            res = "'" + (text.length() > maxDataLen ?
+                    (text.substring(0, maxDataLen) + "...") :
+                    text)
                     + "'";
-            contentLen = utf8Text.length();
+            contentLen = text.length();
         }
 
         if (contentLen > 0) {
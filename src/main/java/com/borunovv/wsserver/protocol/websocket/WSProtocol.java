@@ -1,57 +1,186 @@
 package com.borunovv.wsserver.protocol.websocket;
 
+import com.borunovv.contract.Precondition;
 import com.borunovv.wsserver.nio.RWSession;
+import com.borunovv.wsserver.protocol.http.HttpRequest;
+import com.borunovv.wsserver.protocol.http.HttpRequestHeadParser;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-
+/**
+ * Протокол одной сессии. Хранит состояние разбора входящего потока между чтениями из сокета.
+ */
 public class WSProtocol {
 
-    public int checkPacket(ByteBuffer buffer) {
-        ByteBuffer buff = buffer.duplicate();
-        buff.flip();
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024 * 10; // 10Mb
+    private static final byte[] HANDSHAKE_PREFIX = {'G', 'E', 'T'};
+    private static final int MIN_HANDSHAKE_BUFFER_SIZE = 1024;
+
+    private boolean handshakeDone = false;
+    // Handshake-запрос получен, но ответ на него еще не отправлен (см. completeHandshake()).
+    private boolean handshakePending = false;
+    private final boolean lazyPayloadDecoding;
+    private final WSChunkParser chunkParser;
+    // Разбор handshake-запроса (продолжается с того же места при дочитывании). null после handshake.
+    private HttpRequestHeadParser handshakeParser = new HttpRequestHeadParser();
+    // Уже полученные байты handshake-запроса (новые только дописываются). null после handshake.
+    private byte[] handshakeData;
+    private int handshakeLength;
 
-        byte[] data = buff.array();
-        int length = buff.limit();
+    public WSProtocol() {
+        this(false);
+    }
 
-        return WSMessage.tryParse(data, length);
+    /**
+     * lazyPayloadDecoding - true: data-сообщения не демаскируются и не декодируются в UTF-8 при разборе
+     * (т.е. в R/W потоке), а только при первом обращении к содержимому (см. WSMessage.getUtf8Text()).
+     */
+    public WSProtocol(boolean lazyPayloadDecoding) {
+        this.lazyPayloadDecoding = lazyPayloadDecoding;
+        this.chunkParser = new WSChunkParser(MAX_MESSAGE_SIZE, lazyPayloadDecoding);
     }
 
     public byte[] marshall(WSMessage msg) {
         return msg.marshall();
     }
 
-    public WSMessage unmarshall(RWSession session, byte[] data, int length) {
-        WSMessage msg = new WSMessage(session, data, length);
-        if (msg.isControlMessage()) {
+    public ByteBuffer[] marshallBuffers(WSMessage msg) {
+        return msg.marshallBuffers();
+    }
+
+    /**
+     * Разбирает очередную порцию входящих данных (buffer в режиме чтения).
+     * Разобранные байты из буфера вычитываются, в т.ч. куски еще не законченного сообщения.
+     * Вернет целое сообщение или null, если данных пока недостаточно.
+     * Управляющие сообщения (ping, close) тут же и обрабатываются.
+     * Handshake возвращается только как запрос: ответ готовит completeHandshake() (можно в другом потоке),
+     * а до вызова onHandshakeCompleted() decode() больше ничего не разбирает.
+     */
+    public WSMessage decode(RWSession session, ByteBuffer buffer) {
+        if (handshakePending) {
+            return null;
+        }
+        if (!handshakeDone) {
+            return decodeHandshake(session, buffer);
+        }
+
+        WSMessage msg = decodeFrames(session, buffer);
+        if (msg != null && msg.isControlMessage()) {
             processControlMessage(session, msg);
-        } else {
-            for (WSMessage controlMsg : msg.getInterleavedControlMessages()) {
-                processControlMessage(session, controlMsg);
-            }
         }
         return msg;
     }
 
+    public boolean isHandshakePending() {
+        return handshakePending;
+    }
+
+    public boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    /**
+     * Разбирает handshake-запрос, полученный из decode(), и готовит ответ (HTTP 101).
+     * Состояние протокола не трогает, поэтому может вызываться из любого потока.
+     */
+    public WSMessage completeHandshake(WSMessage request) {
+        HttpRequest httpRequest = request.getHandshakeRequest();
+        Precondition.expected(httpRequest != null, "Not a handshake request: " + request.getType());
+        return WSMessage.makeHandshake(request.getSession(), httpRequest);
+    }
+
+    /**
+     * Отправляет ответ на handshake и разрешает разбор фреймов. Вызывается только из R/W потока.
+     */
+    public void onHandshakeCompleted(RWSession session, WSMessage handshake) {
+        Precondition.expected(handshakePending, "Unexpected handshake completion");
+        // Обработаем X-Forwarded-For header чтобы узнать настоящий ip клиента.
+        String xForwardedIp = handshake.getHandShakeMessage().getRequest().getSingleHeader("X-Forwarded-For");
+        if (xForwardedIp != null) {
+            session.setForwardedIp(xForwardedIp);
+        }
+        session.queueMessageToClient(handshake);
+        handshakePending = false;
+        handshakeDone = true;
+    }
+
+    /**
+     * Вернет true, если сообщение разобрано частично (ждем остаток).
+     */
+    public boolean isInsideMessage() {
+        return chunkParser.isInsideMessage();
+    }
+
+    private WSMessage decodeFrames(RWSession session, ByteBuffer buffer) {
+        if (!chunkParser.parse(buffer)) {
+            return null;
+        }
+
+        WSChunk.Type type = chunkParser.getCompletedType();
+        if (lazyPayloadDecoding && (type == WSChunk.Type.UTF8 || type == WSChunk.Type.BINARY)) {
+            byte[] mask = chunkParser.getCompletedMask();
+            return WSMessage.fromRawPayload(session, type, chunkParser.takeCompletedPayload(), mask);
+        }
+        return WSMessage.fromPayload(session, type, chunkParser.takeCompletedPayload());
+    }
+
+    private WSMessage decodeHandshake(RWSession session, ByteBuffer buffer) {
+        int length = buffer.remaining();
+        if (length == 0) {
+            return null;
+        }
+
+        for (int i = handshakeLength; i < Math.min(handshakeLength + length, HANDSHAKE_PREFIX.length); ++i) {
+            if (buffer.get(buffer.position() + i - handshakeLength) != HANDSHAKE_PREFIX[i]) {
+                throw new RuntimeException("Expected websocket handshake (HTTP GET request)");
+            }
+        }
+
+        // Забираем из буфера только новые байты, разбор продолжается с того места, где остановился.
+        appendHandshakeData(buffer, length);
+        int requestLength = handshakeParser.parse(handshakeData, handshakeLength);
+        if (requestLength <= 0) {
+            return null;
+        }
+
+        // Байты после запроса (если клиент их уже прислал) возвращаем в буфер.
+        buffer.position(buffer.position() - (handshakeLength - requestLength));
+        HttpRequest httpRequest = handshakeParser.buildRequest(handshakeData);
+        handshakeParser = null;
+        handshakeData = null;
+        handshakeLength = 0;
+        handshakePending = true;
+        return WSMessage.makeHandshakeRequest(session, httpRequest);
+    }
+
+    private void appendHandshakeData(ByteBuffer buffer, int length) {
+        // Ограничение как и раньше, когда запрос целиком копился в буфере чтения.
+        int maxSize = buffer.capacity();
+        int required = handshakeLength + length;
+        if (required > maxSize) {
+            throw new RuntimeException("Too big handshake request. Max allowed size: " + maxSize + " bytes");
+        }
+        if (handshakeData == null) {
+            handshakeData = new byte[Math.min(maxSize, Math.max(required, MIN_HANDSHAKE_BUFFER_SIZE))];
+        } else if (handshakeData.length < required) {
+            handshakeData = Arrays.copyOf(handshakeData,
+                    (int) Math.min(maxSize, Math.max(required, handshakeData.length * 2L)));
+        }
+        buffer.get(handshakeData, handshakeLength, length);
+        handshakeLength = required;
+    }
+
     private void processControlMessage(RWSession session, WSMessage msg) {
         switch (msg.getType()) {
-            case HANDSHAKE:
-                // Обработаем X-Forwarded-For header чтобы узнать настоящий ip клиента.
-                if (msg.getHandShakeMessage() != null) {
-                    String xForwardedIp = msg.getHandShakeMessage().getRequest().getSingleHeader("X-Forwarded-For");
-                    if (xForwardedIp != null) {
-                        session.setForwardedIp(xForwardedIp);
-                    }
-                }
-                session.queueMessageToClient(msg);
-                break;
             case CONNECTION_CLOSED:
                 session.queueMessageToClient(WSMessage.makeConnectionClosed(session));
                 break;
             case PING:
-                session.queueMessageToClient(WSMessage.makePong(session));
+                session.queueMessageToClient(WSMessage.makePong(session, msg.getBinaryData()));
                 break;
             case PONG:
+                session.onPong(msg.getBinaryData());
                 break;
             default:
                 throw new RuntimeException("Unexpected control message type: " + msg.getType());
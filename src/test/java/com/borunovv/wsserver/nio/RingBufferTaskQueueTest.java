@@ -0,0 +1,181 @@
+package com.borunovv.wsserver.nio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RingBufferTaskQueueTest {
+
+    @Test
+    public void emptyQueue() {
+        RingBufferTaskQueue<Integer> queue = new RingBufferTaskQueue<>(4);
+
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+        assertEquals(4, queue.capacity());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void fullQueueRejectsUntilPolled() {
+        RingBufferTaskQueue<Integer> queue = new RingBufferTaskQueue<>(3);
+
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertTrue(queue.offer(3));
+        assertEquals(3, queue.size());
+        assertFalse(queue.offer(4));
+        assertEquals(3, queue.size());
+
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertTrue(queue.offer(4));
+        assertFalse(queue.offer(5));
+
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertEquals(Integer.valueOf(4), queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void wrapAroundKeepsFifoOrder() {
+        // Емкость не степень двойки - индекс считается через pos % capacity.
+        RingBufferTaskQueue<Integer> queue = new RingBufferTaskQueue<>(5);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 1000; ++round) {
+            int toOffer = 1 + round % 5;
+            for (int i = 0; i < toOffer; ++i) {
+                if (queue.offer(next)) {
+                    next++;
+                }
+            }
+            assertEquals(next - expected, queue.size());
+            int toPoll = 1 + (round * 7) % 5;
+            for (int i = 0; i < toPoll; ++i) {
+                Integer element = queue.poll();
+                if (element == null) {
+                    break;
+                }
+                assertEquals(expected++, element.intValue());
+            }
+        }
+        for (Integer element = queue.poll(); element != null; element = queue.poll()) {
+            assertEquals(expected++, element.intValue());
+        }
+        assertEquals(next, expected);
+        assertTrue(next > 1000);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void capacityTwo() {
+        RingBufferTaskQueue<String> queue = new RingBufferTaskQueue<>(2);
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(queue.offer("a" + i));
+            assertTrue(queue.offer("b" + i));
+            assertFalse(queue.offer("c" + i));
+            assertEquals(2, queue.size());
+            assertEquals("a" + i, queue.poll());
+            assertEquals("b" + i, queue.poll());
+            assertNull(queue.poll());
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void nullElement() {
+        new RingBufferTaskQueue<Integer>(2).offer(null);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void capacityOne() {
+        // При одной ячейке алгоритм не отличает полную очередь от пустой.
+        new RingBufferTaskQueue<Integer>(1);
+    }
+
+    @Test(timeout = 60000)
+    public void multiProducerMultiConsumerEachElementPolledOnce() throws Exception {
+        final int producersCount = 4;
+        final int consumersCount = 4;
+        final int perProducer = 200000;
+        final int total = producersCount * perProducer;
+        // Маленькая емкость, чтобы очередь постоянно была то полной, то пустой.
+        final RingBufferTaskQueue<Integer> queue = new RingBufferTaskQueue<>(64);
+        final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+        final AtomicInteger polledCount = new AtomicInteger(0);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producersCount; ++p) {
+            final int from = p * perProducer;
+            threads.add(new Thread(() -> {
+                await(start);
+                for (int i = from; i < from + perProducer; ++i) {
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < consumersCount; ++c) {
+            threads.add(new Thread(() -> {
+                await(start);
+                // Свои элементы каждого писателя читатель видит в порядке записи.
+                int[] lastByProducer = new int[producersCount];
+                Arrays.fill(lastByProducer, -1);
+                while (polledCount.get() < total && error.get() == null) {
+                    Integer element = queue.poll();
+                    if (element == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    polledCount.incrementAndGet();
+                    if (seen.incrementAndGet(element) != 1) {
+                        error.compareAndSet(null, new AssertionError("polled twice: " + element));
+                    }
+                    int producer = element / perProducer;
+                    if (element <= lastByProducer[producer]) {
+                        error.compareAndSet(null, new AssertionError("out of order: " + element));
+                    }
+                    lastByProducer[producer] = element;
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(total, polledCount.get());
+        for (int i = 0; i < total; ++i) {
+            assertEquals("element " + i, 1, seen.get(i));
+        }
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.borunovv.wsserver.nio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private static final long TICK_MS = 10;
+    private static final int WHEEL_SIZE = 8;
+
+    // Часы колеса, двигаем вручную.
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+    private final long startMs = clock.get();
+    private final TimingWheel wheel = new TimingWheel(TICK_MS, WHEEL_SIZE, clock::get);
+    private final List<String> fired = new ArrayList<>();
+
+    @Test
+    public void firesInDeadlineOrder() {
+        schedule("c", 50);
+        schedule("a", 10);
+        schedule("d", 70);
+        schedule("b", 25);
+
+        stepTo(100);
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), fired);
+        assertEquals(4, wheel.getFiredCount());
+        assertEquals(0, wheel.getTimeoutsCount());
+    }
+
+    @Test
+    public void neverFiresBeforeDeadline() {
+        TimingWheel.Timeout timeout = schedule("t", 25);
+
+        // 25 мс округляются вверх до целого тика.
+        advanceTo(29);
+        assertTrue(fired.isEmpty());
+        assertFalse(timeout.isExpired());
+
+        advanceTo(30);
+        assertEquals(Collections.singletonList("t"), fired);
+        assertTrue(timeout.isExpired());
+    }
+
+    @Test
+    public void zeroDelayFiresOnNextTick() {
+        schedule("t", 0);
+
+        wheel.advance();
+        assertTrue(fired.isEmpty());
+
+        advanceTo(TICK_MS);
+        assertEquals(Collections.singletonList("t"), fired);
+    }
+
+    @Test
+    public void cancelFromOwnerThreadBeforeFire() {
+        TimingWheel.Timeout cancelled = schedule("cancelled", 20);
+        schedule("kept", 20);
+        assertEquals(2, wheel.getTimeoutsCount());
+
+        cancelled.cancel();
+        // Из потока колеса таймер убирается сразу.
+        assertEquals(1, wheel.getTimeoutsCount());
+        assertTrue(cancelled.isCancelled());
+
+        stepTo(100);
+        assertEquals(Collections.singletonList("kept"), fired);
+        assertFalse(cancelled.isExpired());
+        assertEquals(1, wheel.getFiredCount());
+    }
+
+    @Test
+    public void cancelFromOtherThreadBeforeFire() throws Exception {
+        TimingWheel.Timeout timeout = schedule("t", 20);
+
+        Thread other = new Thread(timeout::cancel);
+        other.start();
+        other.join();
+        // Из чужого потока - только пометка, убирается при проходе ячейки.
+        assertEquals(1, wheel.getTimeoutsCount());
+
+        stepTo(100);
+        assertTrue(fired.isEmpty());
+        assertEquals(0, wheel.getTimeoutsCount());
+    }
+
+    @Test
+    public void cancelledByTaskFiredInSameAdvance() {
+        TimingWheel.Timeout[] second = new TimingWheel.Timeout[1];
+        wheel.schedule(10, () -> {
+            fired.add("first");
+            second[0].cancel();
+        });
+        second[0] = schedule("second", 20);
+
+        // Оба срабатывают за одно продвижение, но второй отменен первым.
+        advanceTo(50);
+        assertEquals(Collections.singletonList("first"), fired);
+        assertEquals(0, wheel.getTimeoutsCount());
+    }
+
+    @Test
+    public void cancelAfterFireIsNoop() {
+        TimingWheel.Timeout timeout = schedule("t", 10);
+        advanceTo(10);
+
+        timeout.cancel();
+        assertTrue(timeout.isExpired());
+        assertEquals(0, wheel.getTimeoutsCount());
+    }
+
+    @Test
+    public void longerThanOneRevolution() {
+        long revolutionMs = TICK_MS * WHEEL_SIZE;
+        // Та же ячейка, но на разных оборотах.
+        schedule("3 revolutions", 3 * revolutionMs);
+        schedule("1 revolution", revolutionMs);
+        schedule("2.5 revolutions", 5 * revolutionMs / 2);
+
+        // Шагаем по 1 мс: каждая ячейка просматривается на каждом обороте.
+        stepTo(revolutionMs - 1);
+        assertTrue(fired.isEmpty());
+
+        stepTo(revolutionMs);
+        assertEquals(Collections.singletonList("1 revolution"), fired);
+
+        stepTo(5 * revolutionMs / 2 - 1);
+        assertEquals(1, fired.size());
+        stepTo(5 * revolutionMs / 2);
+        assertEquals(Arrays.asList("1 revolution", "2.5 revolutions"), fired);
+
+        stepTo(3 * revolutionMs - 1);
+        assertEquals(2, fired.size());
+        stepTo(3 * revolutionMs);
+        assertEquals(Arrays.asList("1 revolution", "2.5 revolutions", "3 revolutions"), fired);
+        assertEquals(0, wheel.getTimeoutsCount());
+    }
+
+    @Test
+    public void catchesUpAfterLongStall() {
+        long revolutionMs = TICK_MS * WHEEL_SIZE;
+        schedule("soon", 10);
+        schedule("next revolution", revolutionMs + 30);
+        schedule("far", 20 * revolutionMs);
+        schedule("after stall", 200 * revolutionMs);
+
+        // Поток долго не продвигал колесо - одно advance() должно запустить все просроченное.
+        advanceTo(100 * revolutionMs);
+        assertEquals(3, fired.size());
+        assertTrue(fired.containsAll(Arrays.asList("soon", "next revolution", "far")));
+        assertEquals(1, wheel.getTimeoutsCount());
+
+        // Таймеры, поставленные после простоя, считаются от нового времени.
+        schedule("new", 10);
+        advanceTo(100 * revolutionMs + 9);
+        assertEquals(3, fired.size());
+        advanceTo(100 * revolutionMs + 10);
+        assertEquals("new", fired.get(3));
+
+        advanceTo(200 * revolutionMs);
+        assertEquals("after stall", fired.get(4));
+        assertEquals(0, wheel.getTimeoutsCount());
+    }
+
+    @Test
+    public void taskMaySchedule() {
+        wheel.schedule(10, () -> {
+            fired.add("first");
+            schedule("second", 10);
+        });
+
+        advanceTo(10);
+        assertEquals(Collections.singletonList("first"), fired);
+        assertEquals(1, wheel.getTimeoutsCount());
+
+        advanceTo(20);
+        assertEquals(Arrays.asList("first", "second"), fired);
+    }
+
+    @Test
+    public void failingTaskDoesNotStopOthers() {
+        wheel.schedule(10, () -> {
+            throw new RuntimeException("test error");
+        });
+        schedule("t", 10);
+
+        advanceTo(10);
+        assertEquals(Collections.singletonList("t"), fired);
+        assertEquals(2, wheel.getFiredCount());
+    }
+
+    @Test
+    public void delayToNextTick() {
+        assertEquals(-1, wheel.getDelayToNextTickMs());
+
+        schedule("t", 35);
+        // Срабатывает на тике 4.
+        assertEquals(40, wheel.getDelayToNextTickMs());
+        advanceTo(12);
+        assertEquals(28, wheel.getDelayToNextTickMs());
+        clock.addAndGet(100);
+        assertEquals(0, wheel.getDelayToNextTickMs());
+
+        wheel.advance();
+        assertEquals(-1, wheel.getDelayToNextTickMs());
+    }
+
+    @Test
+    public void delayToNextTickForFarTimerIsWithinOneRevolution() {
+        schedule("far", 10 * TICK_MS * WHEEL_SIZE + 10);
+
+        // Дальше одного оборота не смотрим: проснемся раньше и только.
+        long delay = wheel.getDelayToNextTickMs();
+        assertTrue(delay >= 0 && delay <= TICK_MS * WHEEL_SIZE);
+    }
+
+    private TimingWheel.Timeout schedule(String name, long delayMs) {
+        return wheel.schedule(delayMs, () -> fired.add(name));
+    }
+
+    // Время относительно создания колеса.
+    private void advanceTo(long ms) {
+        clock.set(startMs + ms);
+        wheel.advance();
+    }
+
+    // То же, но по 1 мс.
+    private void stepTo(long ms) {
+        while (clock.get() < startMs + ms) {
+            clock.incrementAndGet();
+            wheel.advance();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.borunovv.wsserver.protocol.http;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class HttpRequestHeadParserTest {
+
+    private static final String UPGRADE_REQUEST =
+            "GET /chat?room=lobby&user=42 HTTP/1.1\r\n"
+                    + "Host: example.com:8080\r\n"
+                    + "upgrade: websocket\r\n"
+                    + "CONNECTION: Upgrade\r\n"
+                    + "Sec-WebSocket-Key:   dGhlIHNhbXBsZSBub25jZQ==  \r\n"
+                    + "Sec-WebSocket-Version: 13\r\n"
+                    + "Sec-WebSocket-Protocol: chat\r\n"
+                    + "Sec-WebSocket-Protocol: superchat\r\n"
+                    + "\r\n";
+
+    @Test
+    public void upgradeRequestFields() {
+        byte[] data = ascii(UPGRADE_REQUEST);
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+
+        assertEquals(data.length, parser.parse(data, data.length));
+        assertUpgradeRequest(parser.buildRequest(data), data.length);
+    }
+
+    @Test
+    public void everySplitPosition() {
+        byte[] data = ascii(UPGRADE_REQUEST);
+        for (int split = 0; split < data.length; ++split) {
+            HttpRequestHeadParser parser = new HttpRequestHeadParser();
+            assertEquals("split at " + split, -1, parser.parse(data, split));
+            // Данные могут переехать в буфер побольше - начало при этом то же.
+            byte[] grown = Arrays.copyOf(data, data.length + 100);
+            assertEquals("split at " + split, data.length, parser.parse(grown, data.length));
+            assertUpgradeRequest(parser.buildRequest(grown), data.length);
+        }
+    }
+
+    @Test
+    public void byteByByte() {
+        byte[] data = ascii(UPGRADE_REQUEST);
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+        for (int length = 0; length < data.length; ++length) {
+            assertEquals(-1, parser.parse(data, length));
+        }
+        assertEquals(data.length, parser.parse(data, data.length));
+        assertUpgradeRequest(parser.buildRequest(data), data.length);
+    }
+
+    @Test
+    public void bareNewLines() {
+        byte[] data = ascii(UPGRADE_REQUEST.replace("\r\n", "\n"));
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+
+        assertEquals(data.length, parser.parse(data, data.length));
+        assertUpgradeRequest(parser.buildRequest(data), data.length);
+    }
+
+    @Test
+    public void contentIsWaitedFor() throws Exception {
+        byte[] data = ascii("POST /upload HTTP/1.1\r\ncontent-LENGTH: 5\r\n\r\nhello");
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+
+        for (int length = 0; length < data.length; ++length) {
+            assertEquals("length " + length, -1, parser.parse(data, length));
+        }
+        assertEquals(data.length, parser.parse(data, data.length));
+
+        HttpRequest request = new HttpRequest(data, data.length);
+        assertEquals("POST", request.getMethod());
+        assertEquals(5, request.getContentLengthFromHeader());
+        assertArrayEquals(ascii("hello"), request.getContent());
+        assertEquals(data.length, request.getMarshalledSize());
+    }
+
+    @Test
+    public void trailingDataIsNotPartOfRequest() {
+        byte[] request = ascii("GET / HTTP/1.1\r\nContent-Length: 2\r\n\r\nok");
+        byte[] data = Arrays.copyOf(request, request.length + 10);
+
+        assertEquals(request.length, new HttpRequestHeadParser().parse(data, data.length));
+        assertEquals(request.length, HttpRequest.tryParse(data, data.length));
+    }
+
+    @Test(expected = NonCompleteHttpRequestException.class)
+    public void incompleteHead() throws Exception {
+        byte[] data = ascii("GET / HTTP/1.1\r\nHost: example.com\r\n");
+        new HttpRequest(data, data.length);
+    }
+
+    @Test
+    public void nineDigitContentLengthIsAllowed() {
+        byte[] data = ascii("POST / HTTP/1.1\r\nContent-Length: 999999999\r\n\r\n");
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+
+        // Заголовок разобран, но тело еще не пришло.
+        assertEquals(-1, parser.parse(data, data.length));
+        assertEquals(999999999, parser.contentLength);
+        assertEquals(data.length, parser.contentOffset);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tenDigitContentLength() {
+        parse("POST / HTTP/1.1\r\nContent-Length: 1000000000\r\n\r\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeContentLength() {
+        parse("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonDigitContentLength() {
+        parse("POST / HTTP/1.1\r\nContent-Length: 12a\r\n\r\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyContentLength() {
+        parse("POST / HTTP/1.1\r\nContent-Length:\r\n\r\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requestLineWithoutUri() {
+        parse("GET\r\n\r\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requestLineWithoutVersion() {
+        parse("GET /chat\r\n\r\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRequestLine() {
+        parse("\r\nHost: example.com\r\n\r\n");
+    }
+
+    @Test
+    public void malformedRequestLineIsReportedOnceItEnds() {
+        byte[] data = ascii("GET\r\n");
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+
+        // Пока строка не закончилась, судить рано.
+        assertEquals(-1, parser.parse(data, data.length - 1));
+        try {
+            parser.parse(data, data.length);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void headerWithoutColonHasEmptyValue() {
+        HttpRequest request = parse("GET / HTTP/1.1\r\nX-Flag\r\nHost: a\r\n\r\n");
+
+        assertTrue(request.hasHeader("x-flag"));
+        assertEquals("", request.getSingleHeader("X-Flag"));
+        assertEquals("a", request.getSingleHeader("host"));
+    }
+
+    @Test
+    public void manyHeaders() {
+        StringBuilder text = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 500; ++i) {
+            text.append("X-Header-").append(i).append(": value ").append(i).append("\r\n");
+        }
+        text.append("\r\n");
+
+        HttpRequest request = parse(text.toString());
+
+        for (int i = 0; i < 500; ++i) {
+            assertEquals("value " + i, request.getSingleHeader("x-header-" + i));
+        }
+        assertFalse(request.hasHeader("x-header-500"));
+    }
+
+    @Test
+    public void hugeHeaderValue() {
+        char[] value = new char[256 * 1024];
+        Arrays.fill(value, 'v');
+        byte[] data = ascii("GET / HTTP/1.1\r\nX-Big: " + new String(value) + "\r\nHost: a\r\n\r\n");
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+
+        // Дочитываем кусками, как из сокета.
+        int length = 0;
+        while (length + 1000 < data.length) {
+            length += 1000;
+            assertEquals(-1, parser.parse(data, length));
+        }
+        assertEquals(data.length, parser.parse(data, data.length));
+
+        HttpRequest request = parser.buildRequest(data);
+        assertEquals(value.length, request.getSingleHeader("x-big").length());
+        assertEquals("a", request.getSingleHeader("Host"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void buildBeforeHeadIsParsed() {
+        byte[] data = ascii("GET / HTTP/1.1\r\n");
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+        parser.parse(data, data.length);
+        parser.buildRequest(data);
+    }
+
+    private static void assertUpgradeRequest(HttpRequest request, int length) {
+        assertEquals("GET", request.getMethod());
+        assertEquals("/chat?room=lobby&user=42", request.getUri());
+        assertEquals("/chat", request.getUriPath());
+        assertEquals("lobby", request.getUriParams().get("room"));
+        assertEquals("42", request.getUriParams().get("user"));
+
+        // Имена заголовков - без учета регистра, значения - без пробелов по краям.
+        assertEquals("example.com:8080", request.getSingleHeader("HOST"));
+        assertEquals("websocket", request.getSingleHeader("Upgrade"));
+        assertEquals("Upgrade", request.getSingleHeader("connection"));
+        assertEquals("dGhlIHNhbXBsZSBub25jZQ==", request.getSingleHeader("sec-websocket-key"));
+        assertEquals("13", request.getSingleHeader("Sec-WebSocket-Version"));
+        assertEquals(Arrays.asList("chat", "superchat"), request.getHeader("SEC-WEBSOCKET-PROTOCOL"));
+        assertFalse(request.hasHeader("Origin"));
+        assertNull(request.getSingleHeader("Origin"));
+
+        assertEquals(0, request.getContentLengthFromHeader());
+        assertEquals(0, request.getContent().length);
+        assertEquals(length, request.getMarshalledSize());
+    }
+
+    private static HttpRequest parse(String text) {
+        byte[] data = ascii(text);
+        HttpRequestHeadParser parser = new HttpRequestHeadParser();
+        assertEquals(data.length, parser.parse(data, data.length));
+        return parser.buildRequest(data);
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
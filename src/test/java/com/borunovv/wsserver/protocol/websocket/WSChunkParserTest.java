@@ -0,0 +1,306 @@
+package com.borunovv.wsserver.protocol.websocket;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class WSChunkParserTest {
+
+    private static final int MAX_MESSAGE_SIZE = 10 * 1024 * 1024;
+    private static final int TEXT = 0x01;
+    private static final int BINARY = 0x02;
+    private static final int CONTINUATION = 0x00;
+    private static final int PING = 0x09;
+    private static final int PONG = 0x0A;
+
+    private final Random random = new Random(12345);
+
+    @Test
+    public void smallMaskedTextByteByByte() {
+        byte[] stream = frame(TEXT, true, true, utf8("hello"));
+
+        List<Message> messages = decodeInChunks(stream, 1, false);
+
+        assertEquals(1, messages.size());
+        assertMessage(messages.get(0), WSChunk.Type.UTF8, utf8("hello"));
+    }
+
+    @Test
+    public void extendedLengthsMaskedAndUnmasked() {
+        byte[] len7 = randomBytes(125);
+        byte[] len16 = randomBytes(300);
+        byte[] len64 = randomBytes(70000);
+
+        for (boolean masked : new boolean[]{true, false}) {
+            byte[] stream = concat(
+                    frame(BINARY, true, masked, len7),
+                    frame(BINARY, true, masked, len16),
+                    frame(BINARY, true, masked, len64));
+
+            for (int chunkSize : new int[]{1, 3, 7, 1000, stream.length}) {
+                List<Message> messages = decodeInChunks(stream, chunkSize, false);
+                assertEquals(3, messages.size());
+                assertMessage(messages.get(0), WSChunk.Type.BINARY, len7);
+                assertMessage(messages.get(1), WSChunk.Type.BINARY, len16);
+                assertMessage(messages.get(2), WSChunk.Type.BINARY, len64);
+            }
+        }
+    }
+
+    @Test
+    public void fragmentedMessageWithInterleavedControlFrames() {
+        byte[] stream = concat(
+                frame(TEXT, false, true, utf8("Hel")),
+                frame(PING, true, true, utf8("p1")),
+                frame(CONTINUATION, false, true, utf8("lo, ")),
+                frame(PONG, true, false, new byte[0]),
+                frame(CONTINUATION, true, true, utf8("world")));
+
+        List<Message> messages = decodeInChunks(stream, 1, false);
+
+        assertEquals(3, messages.size());
+        assertMessage(messages.get(0), WSChunk.Type.PING, utf8("p1"));
+        assertMessage(messages.get(1), WSChunk.Type.PONG, new byte[0]);
+        assertMessage(messages.get(2), WSChunk.Type.UTF8, utf8("Hello, world"));
+    }
+
+    @Test
+    public void everySplitPositionMatchesWholeBufferDecode() {
+        byte[] stream = concat(
+                frame(TEXT, true, true, utf8("first")),
+                frame(BINARY, false, true, randomBytes(200)),
+                frame(PING, true, true, randomBytes(10)),
+                frame(CONTINUATION, true, false, randomBytes(50)),
+                frame(BINARY, true, true, new byte[0]),
+                frame(TEXT, true, false, utf8("last")));
+
+        for (boolean deferUnmask : new boolean[]{false, true}) {
+            List<Message> expected = decodeInChunks(stream, stream.length, deferUnmask);
+            assertEquals(5, expected.size());
+
+            for (int split = 1; split < stream.length; ++split) {
+                List<Message> actual = decode(deferUnmask,
+                        Arrays.copyOfRange(stream, 0, split),
+                        Arrays.copyOfRange(stream, split, stream.length));
+                assertSameMessages("split at " + split, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void randomSplitsMatchWholeBufferDecode() {
+        for (int round = 0; round < 50; ++round) {
+            byte[] stream = randomStream(20);
+            List<Message> expected = decodeInChunks(stream, stream.length, false);
+
+            List<byte[]> chunks = new ArrayList<>();
+            int offset = 0;
+            while (offset < stream.length) {
+                int size = Math.min(stream.length - offset, 1 + random.nextInt(100));
+                chunks.add(Arrays.copyOfRange(stream, offset, offset + size));
+                offset += size;
+            }
+            assertSameMessages("round " + round, expected,
+                    decode(round % 2 == 0, chunks.toArray(new byte[chunks.size()][])));
+        }
+    }
+
+    @Test
+    public void deferredUnmaskOnlyForSingleMaskedDataFrames() {
+        byte[] payload = utf8("deferred");
+        WSChunkParser parser = new WSChunkParser(MAX_MESSAGE_SIZE, true);
+
+        assertTrue(parser.parse(ByteBuffer.wrap(frame(TEXT, true, true, payload))));
+        assertNotNull(parser.getCompletedMask());
+        byte[] data = parser.takeCompletedPayload();
+        assertFalse(Arrays.equals(payload, data));
+
+        assertTrue(parser.parse(ByteBuffer.wrap(concat(
+                frame(TEXT, false, true, utf8("frag")),
+                frame(CONTINUATION, true, true, utf8("mented"))))));
+        assertNull(parser.getCompletedMask());
+        assertArrayEquals(utf8("fragmented"), parser.takeCompletedPayload());
+
+        assertTrue(parser.parse(ByteBuffer.wrap(frame(PING, true, true, utf8("ctl")))));
+        assertNull(parser.getCompletedMask());
+        assertArrayEquals(utf8("ctl"), parser.takeCompletedPayload());
+    }
+
+    @Test
+    public void headerOnlyDoesNotAllocateDeclaredLength() throws Exception {
+        byte[] payload = randomBytes(MAX_MESSAGE_SIZE - 1);
+        byte[] stream = frame(BINARY, true, true, payload);
+        WSChunkParser parser = new WSChunkParser(MAX_MESSAGE_SIZE);
+
+        // Только заголовок (2 + 8 байт длины + 4 байта маски) и немного payload.
+        assertFalse(parser.parse(ByteBuffer.wrap(stream, 0, 14 + 10)));
+        assertTrue(messageDataCapacity(parser) <= 64 * 1024);
+
+        assertTrue(parser.parse(ByteBuffer.wrap(stream, 24, stream.length - 24)));
+        assertArrayEquals(payload, parser.takeCompletedPayload());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void tooBigMessage() {
+        byte[] header = {(byte) 0x82, 127, 0, 0, 0, 0, 0x7F, 0, 0, 0};
+        new WSChunkParser(MAX_MESSAGE_SIZE).parse(ByteBuffer.wrap(header));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void tooBigControlFrame() {
+        new WSChunkParser(MAX_MESSAGE_SIZE).parse(ByteBuffer.wrap(frame(PING, true, true, new byte[126])));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void fragmentedControlFrame() {
+        new WSChunkParser(MAX_MESSAGE_SIZE).parse(ByteBuffer.wrap(frame(PING, false, true, new byte[1])));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void unexpectedContinuation() {
+        new WSChunkParser(MAX_MESSAGE_SIZE).parse(ByteBuffer.wrap(frame(CONTINUATION, true, true, new byte[1])));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void newMessageInsideFragmentedOne() {
+        new WSChunkParser(MAX_MESSAGE_SIZE).parse(ByteBuffer.wrap(concat(
+                frame(TEXT, false, true, utf8("a")),
+                frame(TEXT, true, true, utf8("b")))));
+    }
+
+    private List<Message> decodeInChunks(byte[] stream, int chunkSize, boolean deferUnmask) {
+        List<byte[]> chunks = new ArrayList<>();
+        for (int offset = 0; offset < stream.length; offset += chunkSize) {
+            chunks.add(Arrays.copyOfRange(stream, offset, Math.min(stream.length, offset + chunkSize)));
+        }
+        return decode(deferUnmask, chunks.toArray(new byte[chunks.size()][]));
+    }
+
+    private static List<Message> decode(boolean deferUnmask, byte[]... chunks) {
+        WSChunkParser parser = new WSChunkParser(MAX_MESSAGE_SIZE, deferUnmask);
+        List<Message> result = new ArrayList<>();
+        for (byte[] chunk : chunks) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (buffer.hasRemaining()) {
+                if (parser.parse(buffer)) {
+                    WSChunk.Type type = parser.getCompletedType();
+                    byte[] mask = parser.getCompletedMask();
+                    byte[] payload = parser.takeCompletedPayload();
+                    if (mask != null) {
+                        WSChunkParser.unmask(payload, 0, payload.length, mask, 0);
+                    }
+                    result.add(new Message(type, payload));
+                }
+            }
+        }
+        assertFalse("stream ended inside a message", parser.isInsideMessage());
+        return result;
+    }
+
+    private byte[] randomStream(int framesCount) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < framesCount; ++i) {
+            boolean masked = random.nextBoolean();
+            int size = random.nextInt(4) == 0 ? 200 + random.nextInt(70000) : random.nextInt(126);
+            if (random.nextInt(4) == 0) {
+                // Фрагментированное сообщение с ping внутри.
+                write(out, frame(BINARY, false, masked, randomBytes(size)));
+                write(out, frame(PING, true, !masked, randomBytes(random.nextInt(126))));
+                write(out, frame(CONTINUATION, true, masked, randomBytes(random.nextInt(300))));
+            } else {
+                write(out, frame(random.nextBoolean() ? TEXT : BINARY, true, masked, randomBytes(size)));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] frame(int opcode, boolean fin, boolean masked, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((fin ? 0x80 : 0) | opcode);
+        int maskBit = masked ? 0x80 : 0;
+        int length = payload.length;
+        if (length <= 125) {
+            out.write(maskBit | length);
+        } else if (length < 65536) {
+            out.write(maskBit | 126);
+            out.write(length >> 8);
+            out.write(length);
+        } else {
+            out.write(maskBit | 127);
+            for (int i = 7; i >= 0; --i) {
+                out.write((int) ((long) length >> (8 * i)));
+            }
+        }
+        if (masked) {
+            byte[] mask = randomBytes(4);
+            write(out, mask);
+            for (int i = 0; i < length; ++i) {
+                out.write(payload[i] ^ mask[i & 3]);
+            }
+        } else {
+            write(out, payload);
+        }
+        return out.toByteArray();
+    }
+
+    private static int messageDataCapacity(WSChunkParser parser) throws Exception {
+        Field field = WSChunkParser.class.getDeclaredField("messageData");
+        field.setAccessible(true);
+        byte[] data = (byte[]) field.get(parser);
+        return data != null ? data.length : 0;
+    }
+
+    private byte[] randomBytes(int count) {
+        byte[] result = new byte[count];
+        random.nextBytes(result);
+        return result;
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            write(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+
+    private static void assertMessage(Message actual, WSChunk.Type type, byte[] payload) {
+        assertEquals(type, actual.type);
+        assertArrayEquals(payload, actual.payload);
+    }
+
+    private static void assertSameMessages(String what, List<Message> expected, List<Message> actual) {
+        assertEquals(what, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(what, expected.get(i).type, actual.get(i).type);
+            assertArrayEquals(what, expected.get(i).payload, actual.get(i).payload);
+        }
+    }
+
+    private static class Message {
+        final WSChunk.Type type;
+        final byte[] payload;
+
+        Message(WSChunk.Type type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.borunovv.wsserver.protocol.websocket;
+
+import com.borunovv.wsserver.protocol.http.HttpRequest;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class WSProtocolHandshakeTest {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final byte[] REQUEST = ascii(
+            "GET /chat HTTP/1.1\r\n"
+                    + "Host: example.com\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n"
+                    + "\r\n");
+
+    @Test
+    public void everySplitPosition() {
+        for (int split = 1; split < REQUEST.length; ++split) {
+            WSProtocol protocol = new WSProtocol();
+            ByteBuffer first = readBuffer(Arrays.copyOfRange(REQUEST, 0, split));
+            assertNull("split at " + split, protocol.decode(null, first));
+            assertFalse(first.hasRemaining());
+
+            ByteBuffer second = readBuffer(Arrays.copyOfRange(REQUEST, split, REQUEST.length));
+            WSMessage msg = protocol.decode(null, second);
+            assertNotNull("split at " + split, msg);
+            assertHandshake(msg);
+            assertTrue(protocol.isHandshakePending());
+        }
+    }
+
+    @Test
+    public void bytesAfterRequestStayInBuffer() {
+        byte[] surplus = {(byte) 0x81, (byte) 0x85, 1, 2, 3};
+        for (int split = 1; split < REQUEST.length; ++split) {
+            WSProtocol protocol = new WSProtocol();
+            assertNull(protocol.decode(null, readBuffer(Arrays.copyOfRange(REQUEST, 0, split))));
+
+            byte[] tail = Arrays.copyOfRange(REQUEST, split, REQUEST.length + surplus.length);
+            System.arraycopy(surplus, 0, tail, REQUEST.length - split, surplus.length);
+            ByteBuffer buffer = readBuffer(tail);
+
+            assertHandshake(protocol.decode(null, buffer));
+            assertEquals(surplus.length, buffer.remaining());
+            byte[] rest = new byte[buffer.remaining()];
+            buffer.get(rest);
+            assertArrayEquals(surplus, rest);
+            // Пока ответ на handshake не отправлен, дальше не разбираем.
+            assertNull(protocol.decode(null, readBuffer(surplus)));
+        }
+    }
+
+    @Test
+    public void requestAsBigAsReadBufferIsAccepted() {
+        byte[] request = requestOfSize(READ_BUFFER_SIZE);
+        WSProtocol protocol = new WSProtocol();
+        int offset = 0;
+        WSMessage msg = null;
+        while (offset < request.length) {
+            int count = Math.min(100, request.length - offset);
+            msg = protocol.decode(null, readBuffer(Arrays.copyOfRange(request, offset, offset + count)));
+            offset += count;
+        }
+        assertNotNull(msg);
+        assertEquals(READ_BUFFER_SIZE, msg.getHandshakeRequest().getMarshalledSize());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void tooBigRequest() {
+        byte[] request = requestOfSize(READ_BUFFER_SIZE + 1);
+        WSProtocol protocol = new WSProtocol();
+        for (int offset = 0; offset < request.length; offset += 100) {
+            byte[] chunk = Arrays.copyOfRange(request, offset, Math.min(request.length, offset + 100));
+            assertNull(protocol.decode(null, readBuffer(chunk)));
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void notGetRequest() {
+        // Отказ сразу по первым байтам, не дожидаясь конца запроса.
+        new WSProtocol().decode(null, readBuffer(ascii("PO")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedRequestLine() {
+        new WSProtocol().decode(null, readBuffer(ascii("GET\r\n\r\n")));
+    }
+
+    private static void assertHandshake(WSMessage msg) {
+        assertEquals(WSMessage.Type.HANDSHAKE, msg.getType());
+        HttpRequest request = msg.getHandshakeRequest();
+        assertEquals("GET", request.getMethod());
+        assertEquals("/chat", request.getUri());
+        assertEquals("dGhlIHNhbXBsZSBub25jZQ==", request.getSingleHeader("sec-websocket-key"));
+        assertEquals(REQUEST.length, request.getMarshalledSize());
+    }
+
+    // Запрос ровно на size байт (добивается значением заголовка).
+    private static byte[] requestOfSize(int size) {
+        String head = "GET / HTTP/1.1\r\nX-Padding: ";
+        String end = "\r\n\r\n";
+        char[] padding = new char[size - head.length() - end.length()];
+        Arrays.fill(padding, 'p');
+        return ascii(head + new String(padding) + end);
+    }
+
+    // Как общий буфер чтения R/W потока: емкость фиксирована, данные - в режиме чтения.
+    private static ByteBuffer readBuffer(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        buffer.put(data);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}